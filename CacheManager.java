@@ -1,73 +1,566 @@
-import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.AsyncCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import models.Host;
 
-import java.util.concurrent.TimeUnit;
-import java.util.function.Supplier;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
+/**
+ * Validation results (command -v, option and path probes) scoped per host
+ * and checked against the host's OS fingerprint. Every write is appended to
+ * a compact local log which is replayed at startup, so a restart against the
+ * same fleet starts warm. The log is rewritten with only the live entries at
+ * startup, and again while running once ros.cache.compactBytes have been
+ * appended or ros.cache.compactIntervalMin has passed since the last rewrite.
+ *
+ * Concurrent misses on one key share a single in-flight probe. Negative
+ * answers and probe errors are kept only briefly, and an entry close to
+ * expiry is re-probed by the next caller to claim it, on the session that
+ * caller holds, while the old answer is served to everyone else.
+ */
 public class CacheManager {
 
-    private final Cache<String, String> commandCache;
-    private final Cache<String, Boolean> optionCache;
-    private final Cache<String, Boolean> pathCache;
+    private static final long COMMAND_TTL_MS = TimeUnit.MINUTES.toMillis(Long.getLong("ros.cache.commandTtlMin", 12 * 60L));
+    private static final long OPTION_TTL_MS = TimeUnit.MINUTES.toMillis(Long.getLong("ros.cache.optionTtlMin", 12 * 60L));
+    private static final long PATH_TTL_MS = TimeUnit.MINUTES.toMillis(Long.getLong("ros.cache.pathTtlMin", 30L));
+    private static final long NEGATIVE_TTL_MS = TimeUnit.SECONDS.toMillis(Long.getLong("ros.cache.negativeTtlSec", 120L));
+    private static final long ERROR_TTL_MS = TimeUnit.SECONDS.toMillis(Long.getLong("ros.cache.errorTtlSec", 10L));
+    // Fraction of an entry's TTL after which the next claim re-probes it
+    private static final double REFRESH_AHEAD = Double.parseDouble(System.getProperty("ros.cache.refreshAhead", "0.8"));
+    private static final long FINGERPRINT_RECHECK_MS = TimeUnit.MINUTES.toMillis(Long.getLong("ros.cache.fingerprintRecheckMin", 60L));
+    private static final String DEFAULT_LOG = System.getProperty("ros.cache.file", "resource/validation-cache.log");
+    private static final long COMPACT_BYTES = Long.getLong("ros.cache.compactBytes", 16L * 1024 * 1024);
+    private static final long COMPACT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(Long.getLong("ros.cache.compactIntervalMin", 6 * 60L));
+
+    // log record kinds
+    private static final char COMMAND = 'C';
+    private static final char OPTION = 'O';
+    private static final char PATH = 'P';
+    private static final char FINGERPRINT = 'F';
+    private static final char INVALIDATE_SCOPE = 'X';
+    private static final char CLEAR = 'Z';
+
+    /** A remote probe; thrown exceptions are cached as errors for the short error TTL. */
+    public interface Loader<T> {
+        T load() throws Exception;
+    }
+
+    private final Probes<String> commandCache;
+    private final Probes<Boolean> optionCache;
+    private final Probes<Boolean> pathCache;
+
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+    private final Map<String, Long> fingerprintCheckedAt = new ConcurrentHashMap<>();
+    private final Set<String> fingerprintChecks = ConcurrentHashMap.newKeySet(); // checks in flight
+
+    private final Path logFile;
+    // guarded by this
+    private Writer log;
+    private long appendedChars; // since the last compaction
+    private long compactedAt;
 
     public CacheManager() {
-        this.commandCache = Caffeine.newBuilder()
-                .expireAfterWrite(10, TimeUnit.MINUTES)
-                .maximumSize(500)
-                .recordStats()
-                .build();
+        this(DEFAULT_LOG.isEmpty() ? null : Paths.get(DEFAULT_LOG));
+    }
+
+    /** logFile may be null for a purely in-memory cache. */
+    public CacheManager(Path logFile) {
+        // "" (no such command) and false (bad option, missing path) are the negative answers
+        this.commandCache = new Probes<>("command", COMMAND, COMMAND_TTL_MS, 50_000, String::isEmpty);
+        this.optionCache = new Probes<>("option", OPTION, OPTION_TTL_MS, 100_000, v -> !v);
+        this.pathCache = new Probes<>("path", PATH, PATH_TTL_MS, 200_000, v -> !v);
 
-        this.optionCache = Caffeine.newBuilder()
-                .expireAfterWrite(10, TimeUnit.MINUTES)
-                .maximumSize(1000)
-                .recordStats()
-                .build();
+        this.logFile = logFile;
+        if (logFile != null) {
+            try {
+                replayAndCompact();
+            } catch (IOException e) {
+                System.out.println("Validation cache not restored from " + logFile + ": " + e.getMessage());
+            }
 
-        this.pathCache = Caffeine.newBuilder()
-                .expireAfterWrite(5, TimeUnit.MINUTES)
-                .maximumSize(2000)
-                .recordStats()
-                .build();
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cache-log-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+        }
+    }
+
+    // -------------------- KEYS --------------------
+    /** Cache scope for a host: results never leak between hosts or OS types. */
+    public static String scope(Host host) {
+        return host.getUser() + "@" + host.getHost() + "#" + String.valueOf(host.getType()).trim().toLowerCase();
+    }
+
+    public static String key(String scope, String key) {
+        return scope + "|" + key;
     }
 
     // -------------------- GETTERS WITH LOADING --------------------
-    public String getOrLoadCommand(String key, Supplier<String> loader) {
-        return commandCache.get(key, k -> loader.get());
+    public String getOrLoadCommand(String key, Loader<String> loader) throws Exception {
+        return commandCache.getOrLoad(key, loader);
+    }
+
+    public Boolean getOrLoadOption(String key, Loader<Boolean> loader) throws Exception {
+        return optionCache.getOrLoad(key, loader);
+    }
+
+    public Boolean getOrLoadPath(String key, Loader<Boolean> loader) throws Exception {
+        return pathCache.getOrLoad(key, loader);
     }
 
-    public Boolean getOrLoadOption(String key, Supplier<Boolean> loader) {
-        return optionCache.get(key, k -> loader.get());
+    // -------------------- BATCH ACCESS --------------------
+    public Probes<String> commands() {
+        return commandCache;
     }
 
-    public Boolean getOrLoadPath(String key, Supplier<Boolean> loader) {
-        return pathCache.get(key, k -> loader.get());
+    public Probes<Boolean> options() {
+        return optionCache;
+    }
+
+    public Probes<Boolean> paths() {
+        return pathCache;
+    }
+
+    public void putCommand(String key, String value) {
+        commandCache.put(key, value);
+    }
+
+    public void putOption(String key, Boolean value) {
+        optionCache.put(key, value);
+    }
+
+    public void putPath(String key, Boolean value) {
+        pathCache.put(key, value);
+    }
+
+    // -------------------- FINGERPRINTS --------------------
+    /**
+     * True when the host's OS fingerprint is due for a check and the caller
+     * should run it; concurrent callers for the same host get false. The
+     * caller must call finishFingerprintCheck whether or not the check
+     * succeeded; only updateFingerprint marks the host as checked, so a
+     * failed check is retried by the next validation.
+     */
+    public boolean claimFingerprintCheck(String scope) {
+        Long checked = fingerprintCheckedAt.get(scope);
+        if (checked != null && System.currentTimeMillis() - checked < FINGERPRINT_RECHECK_MS)
+            return false;
+        return fingerprintChecks.add(scope);
+    }
+
+    public void finishFingerprintCheck(String scope) {
+        fingerprintChecks.remove(scope);
+    }
+
+    /** Records the host's current fingerprint; a change drops everything cached for the host. */
+    public void updateFingerprint(String scope, String fingerprint) {
+        fingerprintCheckedAt.put(scope, System.currentTimeMillis());
+        String previous = fingerprints.put(scope, fingerprint);
+        if (fingerprint.equals(previous))
+            return;
+        if (previous != null) {
+            invalidateScope(scope);
+            append(INVALIDATE_SCOPE, System.currentTimeMillis(), scope, "");
+        }
+        append(FINGERPRINT, System.currentTimeMillis(), scope, fingerprint);
+    }
+
+    private void invalidateScope(String scope) {
+        String prefix = scope + "|";
+        commandCache.removeIf(k -> k.startsWith(prefix));
+        optionCache.removeIf(k -> k.startsWith(prefix));
+        pathCache.removeIf(k -> k.startsWith(prefix));
     }
 
     // -------------------- CACHE MANAGEMENT --------------------
     public void clearAll() {
-        commandCache.invalidateAll();
-        optionCache.invalidateAll();
-        pathCache.invalidateAll();
+        commandCache.clear();
+        optionCache.clear();
+        pathCache.clear();
+        fingerprints.clear();
+        fingerprintCheckedAt.clear();
+        append(CLEAR, System.currentTimeMillis(), "*", "");
     }
 
     public void clearCommandCache() {
-        commandCache.invalidateAll();
+        commandCache.clear();
     }
 
     public void clearOptionCache() {
-        optionCache.invalidateAll();
+        optionCache.clear();
     }
 
     public void clearPathCache() {
-        pathCache.invalidateAll();
+        pathCache.clear();
     }
 
     // -------------------- STATS --------------------
     public String stats() {
-        return "CommandCache: hits=" + commandCache.stats().hitCount() + ", misses=" + commandCache.stats().missCount()
+        return "CommandCache: hits=" + commandCache.cacheStats().hitCount() + ", misses=" + commandCache.cacheStats().missCount()
                 + "\n" +
-                "OptionCache: hits=" + optionCache.stats().hitCount() + ", misses=" + optionCache.stats().missCount()
+                "OptionCache: hits=" + optionCache.cacheStats().hitCount() + ", misses=" + optionCache.cacheStats().missCount()
                 + "\n" +
-                "PathCache: hits=" + pathCache.stats().hitCount() + ", misses=" + pathCache.stats().missCount();
+                "PathCache: hits=" + pathCache.cacheStats().hitCount() + ", misses=" + pathCache.cacheStats().missCount();
+    }
+
+    // -------------------- PROBE CACHE --------------------
+    /**
+     * One kind of probe result. Values are futures, so a miss installs an
+     * in-flight entry that later callers wait on instead of probing again.
+     */
+    public class Probes<T> {
+        private final String name;
+        private final char kind;
+        private final long ttlMs;
+        private final Predicate<T> negative;
+        private final AsyncCache<String, Cached<T>> cache;
+        private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+        Probes(String name, char kind, long ttlMs, long maxSize, Predicate<T> negative) {
+            this.name = name;
+            this.kind = kind;
+            this.ttlMs = ttlMs;
+            this.negative = negative;
+            this.cache = Caffeine.newBuilder()
+                    .expireAfter(new WriteExpiry<>(this::ttlOf))
+                    .maximumSize(maxSize)
+                    .recordStats()
+                    .buildAsync();
+        }
+
+        /**
+         * The cached answer, probing with loader on a miss or when the answer
+         * is due for a refresh. The loader runs on the caller's thread before
+         * this returns, so it may use a session the caller holds only until
+         * then.
+         */
+        T getOrLoad(String key, Loader<T> loader) throws Exception {
+            Claim claim = claim(key);
+            if (claim.isProbe()) {
+                try {
+                    claim.put(loader.load());
+                } catch (Exception e) {
+                    claim.fail(e);
+                }
+            }
+            return claim.get(); // another caller's probe may still be in flight
+        }
+
+        /**
+         * Claims key for the caller. When nothing is cached or in flight the
+         * caller becomes the prober; when the cached answer is close to expiry
+         * the caller re-probes it while the old answer is still served.
+         * Either way it must later answer or fail the returned claim.
+         */
+        public Claim claim(String key) {
+            CompletableFuture<Cached<T>> existing = cache.getIfPresent(key);
+            if (existing == null) {
+                CompletableFuture<Cached<T>> mine = new CompletableFuture<>();
+                existing = cache.asMap().putIfAbsent(key, mine);
+                if (existing == null)
+                    return new Claim(key, mine, true);
+            }
+            boolean refresh = existing.isDone() && dueForRefresh(existing.join()) && refreshing.add(key);
+            return new Claim(key, existing, refresh);
+        }
+
+        /** Stores an answer probed outside of a claim. */
+        public void put(String key, T value) {
+            Cached<T> cached = new Cached<>(value, null, System.currentTimeMillis());
+            append(kind, cached.writtenAt, key, String.valueOf(value));
+            cache.put(key, CompletableFuture.completedFuture(cached));
+            refreshing.remove(key);
+        }
+
+        /**
+         * A claimed key. The claim keeps the very future it found or
+         * installed, so its waiters are released even if the key was
+         * invalidated or cleared while the probe ran; an answer for a key
+         * dropped in the meantime is not cached again. A probe's load time
+         * runs from the claim to its answer or failure, so a batch's probes
+         * are timed around the round trip that answers them.
+         */
+        public class Claim {
+            private final String key;
+            private final CompletableFuture<Cached<T>> pending;
+            private final boolean probe;
+            private final long start = System.nanoTime();
+
+            private Claim(String key, CompletableFuture<Cached<T>> pending, boolean probe) {
+                this.key = key;
+                this.pending = pending;
+                this.probe = probe;
+            }
+
+            /** True when the caller must probe the key and answer or fail this claim. */
+            public boolean isProbe() {
+                return probe;
+            }
+
+            /** The answer to serve: the cached one, or the one still in flight. */
+            public CompletableFuture<T> answer() {
+                return pending.thenApply(Cached::getUnchecked);
+            }
+
+            /** Waits for the answer, throwing the error the probe failed with. */
+            T get() throws Exception {
+                return pending.join().get();
+            }
+
+            public void put(T value) {
+                loaded();
+                Cached<T> cached = new Cached<>(value, null, System.currentTimeMillis());
+                if (pending.complete(cached)) {
+                    if (cache.asMap().get(key) == pending) // cached unless dropped while probing
+                        append(kind, cached.writtenAt, key, String.valueOf(value));
+                } else if (cache.asMap().replace(key, pending, CompletableFuture.completedFuture(cached))) {
+                    append(kind, cached.writtenAt, key, String.valueOf(value)); // refreshed
+                }
+                refreshing.remove(key);
+            }
+
+            /** Fails a new probe for the error TTL; a failed refresh keeps the current answer. */
+            public void fail(Exception error) {
+                loaded();
+                if (probe)
+                    Metrics.CACHE_LOAD_FAILURES.inc(name);
+                pending.complete(new Cached<>(null, error, System.currentTimeMillis()));
+                refreshing.remove(key);
+            }
+
+            private void loaded() {
+                if (probe)
+                    Metrics.CACHE_LOAD.since(start, name);
+            }
+        }
+
+        private long ttlOf(Cached<T> cached) {
+            if (cached.error != null)
+                return ERROR_TTL_MS;
+            return negative.test(cached.value) ? Math.min(NEGATIVE_TTL_MS, ttlMs) : ttlMs;
+        }
+
+        private boolean dueForRefresh(Cached<T> cached) {
+            return cached.error == null
+                    && System.currentTimeMillis() - cached.writtenAt > ttlOf(cached) * REFRESH_AHEAD;
+        }
+
+        private void removeIf(Predicate<String> keys) {
+            cache.asMap().keySet().removeIf(keys);
+        }
+
+        private void clear() {
+            cache.synchronous().invalidateAll();
+            refreshing.clear();
+            append(CLEAR, System.currentTimeMillis(), String.valueOf(kind), "");
+        }
+
+        public CacheStats cacheStats() {
+            return cache.synchronous().stats();
+        }
+
+        private void restore(String key, T value, long writtenAt) {
+            Cached<T> cached = new Cached<>(value, null, writtenAt);
+            if (System.currentTimeMillis() - writtenAt < ttlOf(cached))
+                cache.put(key, CompletableFuture.completedFuture(cached));
+        }
+
+        private void writeLive(Writer out) throws IOException {
+            for (Map.Entry<String, CompletableFuture<Cached<T>>> e : cache.asMap().entrySet()) {
+                Cached<T> cached = e.getValue().getNow(null);
+                if (cached != null && cached.error == null)
+                    out.write(kind + "\t" + cached.writtenAt + "\t" + escape(e.getKey()) + "\t"
+                            + escape(String.valueOf(cached.value)) + "\n");
+            }
+        }
+    }
+
+    // -------------------- PERSISTENCE --------------------
+    // One record per line: kind TAB writtenAtMillis TAB key TAB value (tab, newline and backslash escaped).
+    // Errors are never written; negative answers are, and expire on replay by their shorter TTL.
+
+    private synchronized void append(char kind, long writtenAt, String key, String value) {
+        if (log == null)
+            return;
+        try {
+            String line = kind + "\t" + writtenAt + "\t" + escape(key) + "\t" + escape(value) + "\n";
+            log.write(line);
+            appendedChars += line.length();
+        } catch (IOException e) {
+            System.out.println("Validation cache log write failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            if (log == null)
+                return;
+            log.flush();
+            if (appendedChars > COMPACT_BYTES
+                    || appendedChars > 0 && System.currentTimeMillis() - compactedAt > COMPACT_INTERVAL_MS) {
+                log.close();
+                log = null;
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Validation cache log flush failed: " + e.getMessage());
+            reopen();
+        }
+    }
+
+    // After a failed rewrite, keeps appending to whichever log file is in place
+    private void reopen() {
+        try {
+            if (log == null)
+                log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Validation cache log reopen failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized void replayAndCompact() throws IOException {
+        if (logFile.getParent() != null)
+            Files.createDirectories(logFile.getParent());
+
+        if (Files.exists(logFile)) {
+            Map<String, String[]> live = new LinkedHashMap<>();
+            try (BufferedReader in = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    if (f.length != 4 || f[0].length() != 1)
+                        continue; // torn or foreign line
+                    char kind = f[0].charAt(0);
+                    String key = unescape(f[2]);
+                    if (kind == INVALIDATE_SCOPE) {
+                        live.keySet().removeIf(k -> k.length() > 1 && k.substring(1).startsWith(key + "|"));
+                    } else if (kind == CLEAR) {
+                        live.keySet().removeIf(k -> "*".equals(key) ? k.charAt(0) != FINGERPRINT : k.charAt(0) == key.charAt(0));
+                    } else {
+                        live.put(kind + key, f);
+                    }
+                }
+            }
+
+            for (String[] f : live.values()) {
+                long writtenAt = Long.parseLong(f[1]);
+                String key = unescape(f[2]);
+                String value = unescape(f[3]);
+                switch (f[0].charAt(0)) {
+                    case COMMAND:
+                        commandCache.restore(key, value, writtenAt);
+                        break;
+                    case OPTION:
+                        optionCache.restore(key, Boolean.valueOf(value), writtenAt);
+                        break;
+                    case PATH:
+                        pathCache.restore(key, Boolean.valueOf(value), writtenAt);
+                        break;
+                    case FINGERPRINT:
+                        fingerprints.put(key, value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        compact();
+    }
+
+    // Rewrites the log with only the live in-memory records, then keeps appending to it.
+    // Writers wait on this lock, so nothing is appended to the old file meanwhile.
+    private synchronized void compact() throws IOException {
+        Path tmp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e : fingerprints.entrySet())
+                out.write(FINGERPRINT + "\t0\t" + escape(e.getKey()) + "\t" + escape(e.getValue()) + "\n");
+            commandCache.writeLive(out);
+            optionCache.writeLive(out);
+            pathCache.writeLive(out);
+        }
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        appendedChars = 0;
+        compactedAt = System.currentTimeMillis();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // A probe answer, or the error the probe failed with
+    private static class Cached<T> {
+        final T value;
+        final Exception error;
+        final long writtenAt;
+
+        Cached(T value, Exception error, long writtenAt) {
+            this.value = value;
+            this.error = error;
+            this.writtenAt = writtenAt;
+        }
+
+        T get() throws Exception {
+            if (error != null)
+                throw error;
+            return value;
+        }
+
+        T getUnchecked() {
+            if (error != null)
+                throw new CompletionException(error);
+            return value;
+        }
+    }
+
+    // Entries expire relative to when they were first written, including ones replayed from disk
+    private static class WriteExpiry<T> implements Expiry<String, Cached<T>> {
+        private final ToLongFunction<Cached<T>> ttlMs;
+
+        WriteExpiry(ToLongFunction<Cached<T>> ttlMs) {
+            this.ttlMs = ttlMs;
+        }
+
+        @Override
+        public long expireAfterCreate(String key, Cached<T> value, long currentTime) {
+            long remainingMs = ttlMs.applyAsLong(value) - (System.currentTimeMillis() - value.writtenAt);
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainingMs));
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, Cached<T> value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, Cached<T> value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
     }
 }
@@ -0,0 +1,278 @@
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * stdout and stderr of one remote command, each held in memory up to
+ * ros.output.memoryBytes. Past that a stream spills to a temp file and only
+ * its first and last memoryBytes/2 stay on the heap for the results page;
+ * the full text is served from /output/{id}/{stream} while the file is
+ * retained (ros.output.retainMin after last access).
+ *
+ * Writes come from the JSch session thread; readers wait for done, which
+ * completes once both streams are closed. JSch closes stdout on the remote
+ * EOF but stderr only when the channel itself closes, after any exit status
+ * has arrived, or when the channel or session is dropped.
+ */
+public class CommandOutput {
+
+    private static final int MEMORY_BYTES = Math.max(2, Integer.getInteger("ros.output.memoryBytes", 64 * 1024));
+    private static final long RETAIN_MIN = Long.getLong("ros.output.retainMin", 60);
+    private static final Path SPILL_DIR = Paths.get(System.getProperty("ros.output.spillDir",
+            System.getProperty("java.io.tmpdir")));
+
+    // Only spilled outputs are registered; dropping one deletes its files
+    private static final Cache<String, CommandOutput> SPILLED = Caffeine.newBuilder()
+            .expireAfterAccess(RETAIN_MIN, TimeUnit.MINUTES)
+            .scheduler(Scheduler.systemScheduler())
+            .removalListener((String id, CommandOutput output, RemovalCause cause) -> {
+                if (output != null)
+                    output.deleteFiles();
+            })
+            .build();
+
+    private final String id = UUID.randomUUID().toString().replace("-", "");
+    private final Capture stdout = new Capture("stdout");
+    private final Capture stderr = new Capture("stderr");
+    final CompletableFuture<CommandOutput> done = new CompletableFuture<>();
+    private String digest;
+
+    public Capture getStdout() {
+        return stdout;
+    }
+
+    public Capture getStderr() {
+        return stderr;
+    }
+
+    public long size() {
+        return stdout.size + stderr.size;
+    }
+
+    /**
+     * SHA-256 over the full content of both streams, spilled bytes included,
+     * so two outputs compare equal even when their previews name different
+     * download paths. Only valid once done.
+     */
+    public synchronized String digest() {
+        if (digest == null) {
+            MessageDigest sha = sha256();
+            sha.update(stdout.sha.digest());
+            sha.update(stderr.sha.digest());
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : sha.digest())
+                hex.append(Character.forDigit(b >> 4 & 15, 16)).append(Character.forDigit(b & 15, 16));
+            digest = hex.toString();
+        }
+        return digest;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE ships SHA-256
+        }
+    }
+
+    /** A spilled output for download, or null once it has been dropped. */
+    public static CommandOutput find(String id) {
+        return id == null ? null : SPILLED.getIfPresent(id);
+    }
+
+    /**
+     * Text for the results page: stdout, then stderr under a separator when
+     * there is any. Spilled streams show head and tail around a marker that
+     * names the download path (see Helper's result card).
+     */
+    @Override
+    public String toString() {
+        String out = stdout.preview().trim();
+        String err = stderr.preview().trim();
+        if (err.isEmpty())
+            return out;
+        return out.isEmpty() ? "--- stderr ---\n" + err : out + "\n--- stderr ---\n" + err;
+    }
+
+    /** Deletes the spill files now instead of when the retention runs out; the output is not served again. */
+    public void discard() {
+        SPILLED.invalidate(id);
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        stdout.delete();
+        stderr.delete();
+    }
+
+    // -------------------- CAPTURE --------------------
+    public class Capture extends OutputStream {
+        private final String name;
+        private final MessageDigest sha = sha256();
+        private byte[] head = new byte[256];
+        private int headLength;
+        private byte[] tail; // ring buffer of the last MEMORY_BYTES / 2 bytes once spilled
+        private int tailStart;
+        private int tailLength;
+        private long size;
+        private Path file;
+        private OutputStream fileOut;
+        private boolean spillFailed;
+        private volatile boolean closed;
+
+        Capture(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len <= 0)
+                return;
+            sha.update(b, off, len);
+            if (tail == null && size + len > MEMORY_BYTES)
+                spill();
+            size += len;
+            if (tail == null) {
+                appendHead(b, off, len);
+                return;
+            }
+            int headRoom = MEMORY_BYTES / 2 - headLength;
+            if (headRoom > 0) {
+                int n = Math.min(headRoom, len);
+                appendHead(b, off, n);
+            }
+            appendTail(b, off, len);
+            if (fileOut != null) {
+                try {
+                    fileOut.write(b, off, len);
+                } catch (IOException e) {
+                    abandonFile(e);
+                }
+            }
+        }
+
+        // Keeps head/tail in memory and moves everything to disk from here on
+        private void spill() {
+            tail = new byte[MEMORY_BYTES / 2];
+            int keep = Math.min(headLength, MEMORY_BYTES / 2);
+            appendTail(head, 0, headLength);
+            try {
+                file = Files.createTempFile(SPILL_DIR, "ros-output-" + id + "-", "." + name);
+                fileOut = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+                fileOut.write(head, 0, headLength);
+                SPILLED.put(id, CommandOutput.this);
+            } catch (IOException e) {
+                abandonFile(e);
+            }
+            headLength = keep;
+            head = Arrays.copyOf(head, keep);
+        }
+
+        private void abandonFile(IOException e) {
+            System.out.println("Output spill failed, keeping head and tail only: " + e.getMessage());
+            spillFailed = true;
+            try {
+                if (fileOut != null)
+                    fileOut.close();
+            } catch (IOException ignored) {
+            }
+            fileOut = null;
+        }
+
+        private void appendHead(byte[] b, int off, int len) {
+            if (headLength + len > head.length)
+                head = Arrays.copyOf(head, Math.max(headLength + len, Math.min(2 * head.length, MEMORY_BYTES)));
+            System.arraycopy(b, off, head, headLength, len);
+            headLength += len;
+        }
+
+        private void appendTail(byte[] b, int off, int len) {
+            if (len >= tail.length) {
+                System.arraycopy(b, off + len - tail.length, tail, 0, tail.length);
+                tailStart = 0;
+                tailLength = tail.length;
+                return;
+            }
+            int end = (tailStart + tailLength) % tail.length;
+            int first = Math.min(len, tail.length - end);
+            System.arraycopy(b, off, tail, end, first);
+            System.arraycopy(b, off + first, tail, 0, len - first);
+            int overflow = tailLength + len - tail.length;
+            if (overflow > 0) {
+                tailStart = (tailStart + overflow) % tail.length;
+                tailLength = tail.length;
+            } else {
+                tailLength += len;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null)
+                fileOut.close();
+            closed = true;
+            if (stdout.closed && stderr.closed)
+                done.complete(CommandOutput.this);
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public boolean isSpilled() {
+            return tail != null;
+        }
+
+        /** Whole text if it fit in memory, else head + omission marker + tail. */
+        public String preview() {
+            if (tail == null)
+                return new String(head, 0, headLength, StandardCharsets.UTF_8);
+            byte[] last = new byte[tailLength];
+            int first = Math.min(tailLength, tail.length - tailStart);
+            System.arraycopy(tail, tailStart, last, 0, first);
+            System.arraycopy(tail, 0, last, first, tailLength - first);
+            long omitted = size - headLength - tailLength;
+            String marker = file != null && !spillFailed
+                    ? "[" + omitted + " bytes omitted: /output/" + id + "/" + name + "]"
+                    : "[" + omitted + " bytes omitted]";
+            return new String(head, 0, headLength, StandardCharsets.UTF_8) + "\n...\n" + marker + "\n...\n"
+                    + new String(last, StandardCharsets.UTF_8);
+        }
+
+        /** The full stream: the spill file, or the in-memory bytes. */
+        public InputStream open() throws IOException {
+            if (tail == null)
+                return new ByteArrayInputStream(head, 0, headLength);
+            if (file == null || spillFailed)
+                throw new FileNotFoundException("Full " + name + " was not kept");
+            return Files.newInputStream(file);
+        }
+
+        private void delete() {
+            try {
+                if (file != null)
+                    Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.out.println("Could not delete " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
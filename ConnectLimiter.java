@@ -0,0 +1,155 @@
+import models.Host;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Spreads out new connections so a large run does not start every
+ * handshake at once. Before dialing, a caller takes a slot in its subnet
+ * (ros.connect.maxInFlightPerSubnet), a global slot (ros.connect.maxInFlight),
+ * then a token from a global bucket refilled at ros.connect.ratePerSec up to
+ * ros.connect.burst. Slots are held for one connect attempt, until it is
+ * up or has failed (HostHealth takes a new permit for each retry); queues
+ * are FIFO. Subnets are IPv4 /ros.connect.subnetBits
+ * prefixes; hosts given by name or IPv6 address count as their own subnet.
+ * Pooled sessions never pass through here, only new connections do.
+ */
+public class ConnectLimiter {
+
+    private static final double RATE_PER_SEC = Double.parseDouble(System.getProperty("ros.connect.ratePerSec", "50"));
+    private static final int BURST = Math.max(1, Integer.getInteger("ros.connect.burst", 20));
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("ros.connect.maxInFlight", 32);
+    private static final int MAX_IN_FLIGHT_PER_SUBNET = Integer.getInteger("ros.connect.maxInFlightPerSubnet", 8);
+    private static final int SUBNET_BITS = Integer.getInteger("ros.connect.subnetBits", 24);
+    private static final long QUEUE_TIMEOUT_MS = Long.getLong("ros.connect.queueTimeoutMs", 60_000L);
+
+    private static final Pattern IPV4 = Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})");
+
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT, true);
+    private final Map<String, Semaphore> subnets = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    // token bucket, guarded by this; tokens go negative while callers wait their turn
+    private double tokens = BURST;
+    private long refilledAt = System.nanoTime();
+
+    /** Held while connecting; close() gives the slots back. */
+    public static final class Permit implements AutoCloseable {
+        private final Semaphore global;
+        private final Semaphore subnet;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Permit(Semaphore global, Semaphore subnet) {
+            this.global = global;
+            this.subnet = subnet;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                global.release();
+                subnet.release();
+            }
+        }
+    }
+
+    /** Waits for a subnet slot, a global slot and a token, in that order. */
+    public Permit acquire(Host host) throws InterruptedException, TimeoutException {
+        String subnet = subnet(host.getHost());
+        Semaphore subnetSlots = subnets.computeIfAbsent(subnet, k -> new Semaphore(MAX_IN_FLIGHT_PER_SUBNET, true));
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(QUEUE_TIMEOUT_MS);
+
+        waiting.incrementAndGet();
+        try {
+            if (!subnetSlots.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                throw queueTimeout(host, subnet);
+            boolean acquired = false;
+            try {
+                if (!inFlight.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    throw queueTimeout(host, subnet);
+                acquired = true;
+                takeToken(host, subnet, deadline);
+            } catch (InterruptedException | TimeoutException e) {
+                if (acquired)
+                    inFlight.release();
+                subnetSlots.release();
+                throw e;
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        Metrics.CONNECT_QUEUE.since(start, subnet);
+        return new Permit(inFlight, subnetSlots);
+    }
+
+    // Reserves the next token and sleeps until it is due, so waiters are served in arrival order
+    private void takeToken(Host host, String subnet, long deadline) throws InterruptedException, TimeoutException {
+        if (RATE_PER_SEC <= 0)
+            return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(BURST, tokens + (now - refilledAt) * RATE_PER_SEC / 1e9);
+            refilledAt = now;
+            waitNanos = tokens >= 1 ? 0 : (long) ((1 - tokens) * 1e9 / RATE_PER_SEC);
+            if (now + waitNanos > deadline)
+                throw queueTimeout(host, subnet);
+            tokens--;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                tokens++; // unused reservation
+            }
+            throw e;
+        }
+    }
+
+    private static TimeoutException queueTimeout(Host host, String subnet) {
+        return new TimeoutException("Timed out waiting to connect to " + host.getHost() + " (subnet " + subnet + ")");
+    }
+
+    static String subnet(String host) {
+        Matcher m = IPV4.matcher(host.trim());
+        if (!m.matches() || SUBNET_BITS >= 32)
+            return host.trim().toLowerCase();
+        long address = 0;
+        for (int i = 1; i <= 4; i++)
+            address = address << 8 | (Integer.parseInt(m.group(i)) & 0xff);
+        int bits = Math.max(0, SUBNET_BITS);
+        long network = bits == 0 ? 0 : address & (0xffffffffL << (32 - bits)) & 0xffffffffL;
+        return (network >> 24) + "." + (network >> 16 & 0xff) + "." + (network >> 8 & 0xff) + "." + (network & 0xff)
+                + "/" + bits;
+    }
+
+    // -------------------- STATS --------------------
+    public int getInFlight() {
+        return MAX_IN_FLIGHT - inFlight.availablePermits();
+    }
+
+    /** Callers queued for a slot or a token. */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /** Handshakes in flight per subnet, for subnets with any. */
+    public Map<String, Integer> getInFlightBySubnet() {
+        Map<String, Integer> bySubnet = new TreeMap<>();
+        subnets.forEach((subnet, slots) -> {
+            int used = MAX_IN_FLIGHT_PER_SUBNET - slots.availablePermits();
+            if (used > 0)
+                bySubnet.put(subnet, used);
+        });
+        return bySubnet;
+    }
+}
@@ -1,109 +1,338 @@
 import models.Command;
 import models.Host;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import models.Inventory;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
-import java.io.FileInputStream;
+import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Reads the workbook with POI's XSSF event API: each sheet is streamed
+ * through SAX one row at a time, so memory stays flat regardless of row
+ * count. Formula cells use the value cached in the file; a cell the
+ * inventory needs whose formula was saved without a result (e.g. a workbook
+ * generated by a script and never recalculated) rejects the workbook with
+ * the cell named, rather than reading as empty.
+ */
 public class ExcelParser {
 
+    private static final String HOSTS_SHEET = "hosts_credentials";
+    private static final String COMMANDS_SHEET = "commands";
+
+    // -------------------- INVENTORY --------------------
+    public static Inventory parseInventory(String path) throws Exception {
+        FlightEvents.WorkbookParse event = new FlightEvents.WorkbookParse();
+        event.begin();
+        List<Host> hosts = new ArrayList<>();
+        List<Command> commands = new ArrayList<>();
+        boolean hostsFound = false;
+        boolean commandsFound = false;
+
+        try (OPCPackage pkg = OPCPackage.open(path, PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            List<String> strings = readSharedStrings(reader);
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+
+            while (sheets.hasNext()) {
+                try (InputStream sheet = sheets.next()) {
+                    String name = sheets.getSheetName();
+                    if (HOSTS_SHEET.equals(name)) {
+                        hostsFound = true;
+                        readSheet(sheet, name, strings, new HostRows(hosts));
+                    } else if (COMMANDS_SHEET.equals(name)) {
+                        commandsFound = true;
+                        readSheet(sheet, name, strings, new CommandRows(commands));
+                    }
+                }
+            }
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = path;
+                event.fileBytes = new File(path).length();
+                event.hosts = hosts.size();
+                event.commands = commands.size();
+                event.commit();
+            }
+        }
+
+        if (!hostsFound)
+            throw new Exception("Hosts sheet not found");
+        if (!commandsFound)
+            throw new Exception("Commands sheet not found");
+        return new Inventory(hosts, commands);
+    }
+
     // -------------------- HOSTS --------------------
     public static List<Host> parseHosts(String path) throws Exception {
-        List<Host> hosts = new ArrayList<>();
-        try (FileInputStream fis = new FileInputStream(path);
-                Workbook wb = new XSSFWorkbook(fis)) {
+        return parseInventory(path).getHosts();
+    }
+
+    // -------------------- COMMANDS --------------------
+    public static List<Command> parseCommands(String path) throws Exception {
+        return parseInventory(path).getCommands();
+    }
+
+    private interface RowHandler {
+        void row(Row row) throws SAXException;
+    }
 
-            Sheet sheet = wb.getSheet("hosts_credentials");
-            if (sheet == null)
-                throw new Exception("Hosts sheet not found");
+    // One row's non-empty cell values by column, plus the formula cells that have no cached value
+    private static class Row {
+        private final String sheet;
+        private final int rowNum;
+        private final Map<Integer, String> cells;
+        private final Set<Integer> uncached;
 
-            FormulaEvaluator evaluator = wb.getCreationHelper().createFormulaEvaluator();
+        Row(String sheet, int rowNum, Map<Integer, String> cells, Set<Integer> uncached) {
+            this.sheet = sheet;
+            this.rowNum = rowNum;
+            this.cells = cells;
+            this.uncached = uncached;
+        }
+
+        String get(int column) throws SAXException {
+            if (uncached.contains(column))
+                throw new SAXException("Cell " + columnName(column) + (rowNum + 1) + " on sheet " + sheet
+                        + " is a formula with no saved result; recalculate and save the workbook in Excel,"
+                        + " or enter the value itself");
+            return cells.getOrDefault(column, "");
+        }
+    }
 
+    private static class HostRows implements RowHandler {
+        private final List<Host> hosts;
+        private String osType = "";
+
+        HostRows(List<Host> hosts) {
+            this.hosts = hosts;
+        }
+
+        @Override
+        public void row(Row row) throws SAXException {
             // Get OS type from cell F2 (row 1, column 5)
-            Row osRow = sheet.getRow(1);
-            Cell cell = osRow.getCell(5); // F2
-            String osType = getCellValue(cell, evaluator);
-            System.out.println("Detected OS type: [" + osType + "]");
+            if (row.rowNum == 1) {
+                osType = row.get(5);
+                System.out.println("Detected OS type: [" + osType + "]");
+            }
 
             // Start reading hosts from row index 4 (line 5 in Excel)
-            for (int i = 4; i <= sheet.getLastRowNum(); i++) {
-                Row row = sheet.getRow(i);
-                if (row == null)
-                    continue; // skip empty rows
-                if (row.getCell(0) == null || getCellValue(row.getCell(0), evaluator).isEmpty())
-                    continue; // skip rows with empty first cell
-
-                String host = getCellValue(row.getCell(1), evaluator);
-                String user = getCellValue(row.getCell(7), evaluator);
-                String pass = getCellValue(row.getCell(12), evaluator);
-                // Use OS type from F2 for all hosts
-                hosts.add(new Host(host, user, pass, osType));
-
-                System.out.println("Host: " + host + ", User: " + user + ", Type: " + osType);
-            }
+            if (row.rowNum < 4 || row.get(0).isEmpty())
+                return; // skip rows with empty first cell
+
+            String host = row.get(1);
+            String user = row.get(7);
+            String pass = row.get(12);
+            // Use OS type from F2 for all hosts
+            hosts.add(new Host(host, user, pass, osType));
+
+            System.out.println("Host: " + host + ", User: " + user + ", Type: " + osType);
         }
-        return hosts;
     }
 
-    // -------------------- COMMANDS --------------------
-    public static List<Command> parseCommands(String path) throws Exception {
-        List<Command> commands = new ArrayList<>();
-        try (FileInputStream fis = new FileInputStream(path);
-                Workbook wb = new XSSFWorkbook(fis)) {
+    private static class CommandRows implements RowHandler {
+        private final List<Command> commands;
 
-            Sheet sheet = wb.getSheet("commands");
-            if (sheet == null)
-                throw new Exception("Commands sheet not found");
+        CommandRows(List<Command> commands) {
+            this.commands = commands;
+        }
 
-            FormulaEvaluator evaluator = wb.getCreationHelper().createFormulaEvaluator();
+        @Override
+        public void row(Row row) throws SAXException {
+            if (row.rowNum == 0)
+                return; // skip header
+            String desc = row.get(0);
+            if (desc.isEmpty())
+                return;
+            commands.add(new Command(desc, row.get(1)));
+        }
+    }
 
-            for (Row row : sheet) {
-                if (row.getRowNum() == 0)
-                    continue; // skip header
-                if (row.getCell(0) == null || getCellValue(row.getCell(0), evaluator).isEmpty())
-                    continue;
+    // -------------------- SAX --------------------
+    private static void readSheet(InputStream sheet, String name, List<String> strings, RowHandler rows)
+            throws Exception {
+        XMLReader reader = XMLHelper.newXMLReader();
+        reader.setContentHandler(new SheetHandler(name, strings, rows));
+        reader.parse(new InputSource(sheet));
+    }
 
-                String desc = getCellValue(row.getCell(0), evaluator);
-                String cmd = getCellValue(row.getCell(1), evaluator);
+    // Plain-text shared strings; avoids POI's rich-text types and their schema jars
+    private static List<String> readSharedStrings(XSSFReader workbook) throws Exception {
+        List<String> strings = new ArrayList<>();
+        InputStream data;
+        try {
+            data = workbook.getSharedStringsData();
+        } catch (Exception e) {
+            return strings; // workbook without any text cells
+        }
 
-                commands.add(new Command(desc, cmd));
-            }
+        try (InputStream in = data) {
+            XMLReader reader = XMLHelper.newXMLReader();
+            reader.setContentHandler(new DefaultHandler() {
+                private final StringBuilder text = new StringBuilder();
+                private boolean inText;
+                private boolean inPhonetic;
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attrs) {
+                    if ("si".equals(localName))
+                        text.setLength(0);
+                    else if ("rPh".equals(localName))
+                        inPhonetic = true;
+                    else if ("t".equals(localName))
+                        inText = !inPhonetic;
+                }
+
+                @Override
+                public void characters(char[] ch, int start, int length) {
+                    if (inText)
+                        text.append(ch, start, length);
+                }
+
+                @Override
+                public void endElement(String uri, String localName, String qName) {
+                    if ("si".equals(localName))
+                        strings.add(text.toString());
+                    else if ("rPh".equals(localName))
+                        inPhonetic = false;
+                    else if ("t".equals(localName))
+                        inText = false;
+                }
+            });
+            reader.parse(new InputSource(in));
         }
-        return commands;
+        return strings;
     }
 
-    // -------------------- HELPER --------------------
-    private static String getCellValue(Cell cell, FormulaEvaluator evaluator) {
-        if (cell == null)
-            return "";
+    private static class SheetHandler extends DefaultHandler {
+        private final String sheet;
+        private final List<String> strings;
+        private final RowHandler rows;
+
+        private final Map<Integer, String> cells = new HashMap<>();
+        private final Set<Integer> uncached = new HashSet<>();
+        private final StringBuilder text = new StringBuilder();
+        private int rowNum = -1;
+        private int column = -1;
+        private String cellType;
+        private boolean inValue;
+        private boolean formula;
+        private boolean cachedValue;
+
+        SheetHandler(String sheet, List<String> strings, RowHandler rows) {
+            this.sheet = sheet;
+            this.strings = strings;
+            this.rows = rows;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attrs) {
+            switch (localName) {
+                case "row":
+                    String r = attrs.getValue("r");
+                    rowNum = r != null ? Integer.parseInt(r) - 1 : rowNum + 1;
+                    column = -1;
+                    cells.clear();
+                    uncached.clear();
+                    break;
+                case "c":
+                    String ref = attrs.getValue("r");
+                    column = ref != null ? columnIndex(ref) : column + 1;
+                    cellType = attrs.getValue("t");
+                    text.setLength(0);
+                    formula = false;
+                    cachedValue = false;
+                    break;
+                case "f":
+                    formula = true;
+                    break;
+                case "v":
+                case "t":
+                    inValue = true;
+                    cachedValue = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inValue)
+                text.append(ch, start, length);
+        }
 
-        CellType type = cell.getCellType();
-        if (type == CellType.FORMULA) {
-            // Evaluate the formula
-            CellValue cv = evaluator.evaluate(cell);
-            if (cv == null)
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inValue = false;
+                    break;
+                case "c":
+                    if (formula && !cachedValue) {
+                        uncached.add(column);
+                        break;
+                    }
+                    String value = cellValue();
+                    if (!value.isEmpty())
+                        cells.put(column, value);
+                    break;
+                case "row":
+                    rows.row(new Row(sheet, rowNum, cells, uncached));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private String cellValue() {
+            if (text.length() == 0)
                 return "";
-            switch (cv.getCellType()) {
-                case STRING:
-                    return cv.getStringValue().trim();
-                case NUMERIC:
-                    double val = cv.getNumberValue();
-                    return (val == (long) val) ? String.valueOf((long) val) : String.valueOf(val);
-                case BOOLEAN:
-                    return String.valueOf(cv.getBooleanValue());
+            String raw = text.toString();
+            if (cellType == null || "n".equals(cellType)) {
+                double val = Double.parseDouble(raw);
+                return (val == (long) val) ? String.valueOf((long) val) : String.valueOf(val);
+            }
+            switch (cellType) {
+                case "s":
+                    return strings.get(Integer.parseInt(raw.trim())).trim();
+                case "b":
+                    return String.valueOf("1".equals(raw.trim()));
+                case "str":
+                case "inlineStr":
+                    return raw.trim();
                 default:
                     return "";
             }
-        } else if (type == CellType.STRING) {
-            return cell.getStringCellValue().trim();
-        } else if (type == CellType.NUMERIC) {
-            double val = cell.getNumericCellValue();
-            return (val == (long) val) ? String.valueOf((long) val) : String.valueOf(val);
-        } else if (type == CellType.BOOLEAN) {
-            return String.valueOf(cell.getBooleanCellValue());
         }
-        return "";
+
+        private static int columnIndex(String ref) {
+            int col = 0;
+            for (int i = 0; i < ref.length() && Character.isLetter(ref.charAt(i)); i++)
+                col = col * 26 + (ref.charAt(i) - 'A' + 1);
+            return col - 1;
+        }
+    }
+
+    private static String columnName(int column) {
+        StringBuilder name = new StringBuilder();
+        for (int col = column + 1; col > 0; col = (col - 1) / 26)
+            name.insert(0, (char) ('A' + (col - 1) % 26));
+        return name.toString();
     }
 }
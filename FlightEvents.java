@@ -0,0 +1,137 @@
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder events for the slow parts of a run. They cost next to
+ * nothing until a recording is started, e.g. with
+ * jcmd &lt;pid&gt; JFR.start name=ros duration=5m filename=ros.jfr
+ * and then show up under the "ROS" category next to GC and thread data.
+ */
+public final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    @Name("ros.SshConnect")
+    @Label("SSH Connect")
+    @Category({ "ROS", "SSH" })
+    @Description("TCP connect, key exchange and authentication of a new SSH session")
+    @StackTrace(false)
+    public static class SshConnect extends Event {
+        @Label("Host")
+        public String host;
+
+        @Label("User")
+        public String user;
+
+        @Label("Port")
+        public int port;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("ros.SshExec")
+    @Label("SSH Exec")
+    @Category({ "ROS", "SSH" })
+    @Description("One remote command on an exec channel, from channel open to EOF")
+    @StackTrace(false)
+    public static class SshExec extends Event {
+        @Label("Host")
+        public String host;
+
+        @Label("Command")
+        public String command;
+
+        @Label("Stdin")
+        @DataAmount
+        public long stdinBytes;
+
+        @Label("Output")
+        @DataAmount
+        public long outputBytes;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("ros.WinRmExec")
+    @Label("WinRM Exec")
+    @Category({ "ROS", "WinRM" })
+    @Description("One remote command over WinRM")
+    @StackTrace(false)
+    public static class WinRmExec extends Event {
+        @Label("Host")
+        public String host;
+
+        @Label("Command")
+        public String command;
+
+        @Label("Output")
+        @DataAmount
+        public long outputBytes;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("ros.WorkbookParse")
+    @Label("Workbook Parse")
+    @Category({ "ROS", "Workbook" })
+    @Description("Streaming parse of an uploaded inventory workbook")
+    public static class WorkbookParse extends Event {
+        @Label("Path")
+        public String path;
+
+        @Label("File Size")
+        @DataAmount
+        public long fileBytes;
+
+        @Label("Hosts")
+        public int hosts;
+
+        @Label("Commands")
+        public int commands;
+    }
+
+    @Name("ros.HtmlRender")
+    @Label("HTML Render")
+    @Category({ "ROS", "HTTP" })
+    @Description("Rendering of a results page or card")
+    @StackTrace(false)
+    public static class HtmlRender extends Event {
+        @Label("Page")
+        public String page;
+
+        @Label("Host")
+        public String host;
+
+        @Label("Hosts")
+        public int hosts;
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+
+    /** UTF-8 length without encoding the text; only called when an event will be committed. */
+    static long utf8Length(CharSequence s) {
+        return utf8Length(s, 0, s.length());
+    }
+
+    static long utf8Length(CharSequence s, int start, int end) {
+        long n = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                n++;
+            else if (c < 0x800)
+                n += 2;
+            else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else
+                n += 3;
+        }
+        return n;
+    }
+}
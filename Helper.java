@@ -1,12 +1,19 @@
 import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.fileupload.MultipartStream;
+import org.apache.commons.fileupload.ParameterParser;
 
 import models.*;
 
 import java.io.*;
 import java.net.URLDecoder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -15,41 +22,64 @@ public class Helper {
     // ---------------- File Upload ----------------
     public static class FileUploadHelper {
 
+        private static final int BUFFER_SIZE = 64 * 1024;
+
         public static File saveUploadedFile(HttpExchange exchange, String filename) throws IOException {
+            return saveUploadedFile(exchange, filename, null);
+        }
+
+        /**
+         * Streams the first file part of a multipart body straight to disk;
+         * boundaries are scanned in a fixed buffer, so memory use does not
+         * depend on the upload size. When fields is non-null the other form
+         * fields are collected into it as well, and a form without a file
+         * part returns null instead of failing.
+         */
+        public static File saveUploadedFile(HttpExchange exchange, String filename,
+                Map<String, List<String>> fields) throws IOException {
             String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
             if (contentType == null || !contentType.contains("multipart/form-data")) {
                 throw new IOException("Invalid upload");
             }
 
-            String boundary = contentType.split("boundary=")[1];
-            InputStream is = exchange.getRequestBody();
-            byte[] body = toByteArray(is);
-
-            String content = new String(body, "ISO-8859-1");
-            String[] parts = content.split("--" + boundary);
-
-            for (String part : parts) {
-                if (part.contains("filename=\"")) {
-                    int start = part.indexOf("\r\n\r\n") + 4;
-                    int end = part.lastIndexOf("\r\n");
-                    byte[] fileData = part.substring(start, end).getBytes("ISO-8859-1");
-
+            MultipartStream multipart = new MultipartStream(exchange.getRequestBody(), boundary(contentType),
+                    BUFFER_SIZE, null);
+            File saved = null;
+            boolean nextPart = multipart.skipPreamble();
+            while (nextPart) {
+                String headers = multipart.readHeaders();
+                if (headers.contains("filename=\"") && saved == null) {
                     // Create resource directory if not exists
                     Path resourceDir = Paths.get("resource");
                     if (!Files.exists(resourceDir))
                         Files.createDirectories(resourceDir);
 
-                    // Add timestamp to filename
+                    // Timestamp plus a unique part, so uploads in the same second never share a file
                     String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-                    String savedFilename = resourceDir.resolve(timestamp + "_" + filename).toString();
-
-                    File tempFile = new File(savedFilename);
-                    Files.write(tempFile.toPath(), fileData);
-                    return tempFile;
+                    Path savedFile = Files.createTempFile(resourceDir, timestamp + "_", "_" + filename);
+
+                    try (FileChannel channel = FileChannel.open(savedFile, StandardOpenOption.WRITE);
+                            OutputStream out = Channels.newOutputStream(channel)) {
+                        multipart.readBodyData(out);
+                    } catch (IOException e) {
+                        Files.deleteIfExists(savedFile); // a truncated upload is never registered
+                        throw e;
+                    }
+                    saved = savedFile.toFile();
+                    if (fields == null)
+                        return saved;
+                } else if (fields != null && !headers.contains("filename=\"")
+                        && dispositionParam(headers, "name") != null) {
+                    readField(multipart, headers, fields);
+                } else {
+                    multipart.discardBodyData();
                 }
+                nextPart = multipart.readBoundary();
             }
 
-            throw new IOException("No file found in upload");
+            if (saved == null && fields == null)
+                throw new IOException("No file found in upload");
+            return saved;
         }
     }
 
@@ -59,39 +89,17 @@ public class Helper {
         String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
 
         if (contentType != null && contentType.contains("multipart/form-data")) {
-            String boundary = contentType.split("boundary=")[1];
-            byte[] bodyBytes = toByteArray(exchange.getRequestBody());
-            String content = new String(bodyBytes, "ISO-8859-1");
-
-            String[] parts = content.split("--" + boundary);
-            for (int i = 0; i < parts.length; i++) {
-                String part = parts[i];
-                if (part.contains("Content-Disposition") && !part.contains("filename=\"")) {
-                    String[] lines = part.split("\r\n");
-                    String nameLine = null;
-                    for (int j = 0; j < lines.length; j++) {
-                        if (lines[j].startsWith("Content-Disposition")) {
-                            nameLine = lines[j];
-                            break;
-                        }
-                    }
-                    if (nameLine != null) {
-                        String name = nameLine.replaceAll(".*name=\"([^\"]+)\".*", "$1");
-                        int start = part.indexOf("\r\n\r\n") + 4;
-                        int end = part.lastIndexOf("\r\n");
-                        if (start >= 4 && end > start) {
-                            String value = part.substring(start, end);
-                            value = URLDecoder.decode(value, "UTF-8");
-
-                            List<String> list = map.get(name);
-                            if (list == null) {
-                                list = new ArrayList<String>();
-                                map.put(name, list);
-                            }
-                            list.add(value);
-                        }
-                    }
+            MultipartStream multipart = new MultipartStream(exchange.getRequestBody(), boundary(contentType),
+                    FileUploadHelper.BUFFER_SIZE, null);
+            boolean nextPart = multipart.skipPreamble();
+            while (nextPart) {
+                String headers = multipart.readHeaders();
+                if (dispositionParam(headers, "name") == null || headers.contains("filename=\"")) {
+                    multipart.discardBodyData();
+                } else {
+                    readField(multipart, headers, map);
                 }
+                nextPart = multipart.readBoundary();
             }
         } else {
             String body = toString(exchange.getRequestBody(), "UTF-8");
@@ -115,114 +123,489 @@ public class Helper {
         return map;
     }
 
+    private static void readField(MultipartStream multipart, String headers, Map<String, List<String>> map)
+            throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        multipart.readBodyData(value);
+
+        String name = dispositionParam(headers, "name");
+        List<String> list = map.get(name);
+        if (list == null) {
+            list = new ArrayList<String>();
+            map.put(name, list);
+        }
+        list.add(URLDecoder.decode(value.toString("UTF-8"), "UTF-8"));
+    }
+
+    private static byte[] boundary(String contentType) throws IOException {
+        String boundary = new ParameterParser().parse(contentType, new char[] { ';', ',' }).get("boundary");
+        if (boundary == null)
+            throw new IOException("Missing multipart boundary");
+        return boundary.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String dispositionParam(String headers, String param) {
+        for (String line : headers.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Disposition:", 0, 20))
+                return new ParameterParser().parse(line.substring(20), ';').get(param);
+        }
+        return null;
+    }
+
     // ---------------- HTML Builder ----------------
     public static class HtmlBuilder {
 
+        // Omission marker written by CommandOutput for spilled output; plain ASCII, so unchanged by escaping
+        private static final Pattern OMITTED = Pattern.compile("\\[(\\d+) bytes omitted: (/output/[0-9a-f]+/std(?:out|err))\\]");
+
         public static String buildValidationPageVertical(
+                String uploadId,
                 List<Host> hosts,
                 List<Command> commands,
                 Map<String, Map<String, String>> validationResults,
                 List<Host> validHosts) {
+            StringWriter sw = new StringWriter();
+            try (Writer out = new PageWriter(sw)) {
+                writeValidationPageVertical(out, uploadId, hosts, commands, validationResults, validHosts);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // StringWriter does not throw
+            }
+            return sw.toString();
+        }
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("<form id='executeForm' action='/execute' method='post'>");
+        /** Writes the validation form to out; statuses are server-generated markup and are not escaped. */
+        public static void writeValidationPageVertical(
+                Writer out,
+                String uploadId,
+                List<Host> hosts,
+                List<Command> commands,
+                Map<String, Map<String, String>> validationResults,
+                List<Host> validHosts) throws IOException {
+
+            FlightEvents.HtmlRender event = new FlightEvents.HtmlRender();
+            event.begin();
+            CountingWriter counter = event.isEnabled() ? new CountingWriter(out) : null;
+            Writer w = counter != null ? counter : out;
+            Set<Host> valid = Collections.newSetFromMap(new IdentityHashMap<>());
+            synchronized (validHosts) {
+                valid.addAll(validHosts);
+            }
+
+            w.write("<form id='executeForm' action='/execute' method='post'>");
+            w.write("<input type='hidden' name='upload' value='");
+            escapeHtml(w, uploadId);
+            w.write("'>");
 
             for (Host host : hosts) {
-                boolean isValid = validHosts.contains(host);
-                sb.append("<div class='card mb-3'>");
-                sb.append("<div class='card-header'>");
-                sb.append(isValid ? "<input type='checkbox' name='host' value='" + host.getHost() + "'> " : "");
-                sb.append("<strong>").append(host.getHost()).append(" (").append(host.getType()).append(")</strong>");
-                sb.append("</div>");
-                sb.append("<div class='card-body'>");
-                sb.append("<ul class='list-group'>");
+                w.write("<div class='card mb-3'>");
+                w.write("<div class='card-header'>");
+                if (valid.contains(host)) {
+                    w.write("<input type='checkbox' name='host' value='");
+                    escapeHtml(w, host.getHost());
+                    w.write("'> ");
+                }
+                w.write("<strong>");
+                escapeHtml(w, host.getHost());
+                w.write(" (");
+                escapeHtml(w, host.getType());
+                w.write(")</strong>");
+                w.write("</div>");
+                w.write("<div class='card-body'>");
+                w.write("<ul class='list-group'>");
 
                 Map<String, String> cmdStatus = validationResults.get(host.getHost());
                 for (Command cmd : commands) {
-                    sb.append("<li class='list-group-item'>")
-                            .append("<strong>").append(cmd.getCommand()).append(":</strong> ")
-                            .append(cmdStatus.get(cmd.getDescription()))
-                            .append("</li>");
+                    w.write("<li class='list-group-item'><strong>");
+                    escapeHtml(w, cmd.getCommand());
+                    w.write(":</strong> ");
+                    w.write(String.valueOf(cmdStatus.get(cmd.getDescription())));
+                    w.write("</li>");
                 }
 
-                sb.append("</ul>");
-                sb.append("<div id='result_" + host.getHost() + "' class='mt-2'></div>"); // Execution result
-                                                                                          // placeholder
-                sb.append("</div></div>");
+                w.write("</ul>");
+                w.write("<div id='result_");
+                escapeHtml(w, host.getHost());
+                w.write("' class='mt-2'></div>"); // Execution result placeholder
+                w.write("</div></div>");
             }
 
-            sb.append("<button type='submit' class='btn btn-success'>Run Commands</button></form>");
-            return sb.toString();
+            w.write("<div class='d-flex gap-2 align-items-center'>");
+            w.write("<select name='view' class='form-select w-auto'>");
+            w.write("<option value='grouped'>Group hosts with identical output</option>");
+            w.write("<option value='hosts'>One card per host</option>");
+            w.write("</select>");
+            w.write("<button type='submit' class='btn btn-success'>Run Commands</button></div></form>");
+            commit(event, "validation", null, hosts.size(), counter);
         }
 
         public static String buildExecutionPage(Map<String, Map<String, String>> results) {
-            StringBuilder sb = new StringBuilder();
+            StringWriter sw = new StringWriter();
+            try (Writer out = new PageWriter(sw)) {
+                writeExecutionPage(out, results);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // StringWriter does not throw
+            }
+            return sw.toString();
+        }
 
-            // Start with complete HTML structure
-            sb.append("<!DOCTYPE html>");
-            sb.append("<html lang='en'>");
-            sb.append("<head>");
-            sb.append("<meta charset='UTF-8'>");
-            sb.append("<title>Execution Results</title>");
-            sb.append("<link href='/static/css/bootstrap.min.css' rel='stylesheet'>");
-            sb.append("<style>");
-            sb.append("body { background-color: #f8f9fa; padding: 20px; }");
-            sb.append(".container { max-width: 1200px; margin: 0 auto; }");
-            sb.append(
-                    "pre { white-space: pre-wrap; word-wrap: break-word; background: #f1f1f1; padding: 10px; border-radius: 6px; margin: 5px 0; }");
-            sb.append(".card-header { font-weight: bold; }");
-            sb.append(".list-group-item { border: 1px solid rgba(0,0,0,.125); }");
-            sb.append("</style>");
-            sb.append("</head>");
-            sb.append("<body>");
-
-            sb.append("<div class='container'>");
-            sb.append("<div class='bg-white p-4 rounded shadow'>");
-            sb.append("<h3 class='mb-4 text-center'>Execution Results</h3>");
-
-            // Add the results content
-            for (String host : results.keySet()) {
-                sb.append("<div class='card mb-4'>");
-                sb.append("<div class='card-header bg-primary text-white'>").append(host).append("</div>");
-                sb.append("<div class='card-body'><ul class='list-group list-group-flush'>");
-
-                Map<String, String> cmdResults = results.get(host);
-                for (String cmdDesc : cmdResults.keySet()) {
-                    String result = cmdResults.get(cmdDesc);
-                    sb.append("<li class='list-group-item'>")
-                            .append("<strong class='text-primary'>").append(cmdDesc).append(":</strong><br>")
-                            .append("<pre class='mt-2'>").append(escapeHtml(result)).append("</pre>")
-                            .append("</li>");
+        public static void writeExecutionPage(Writer out, Map<String, Map<String, String>> results)
+                throws IOException {
+            FlightEvents.HtmlRender event = new FlightEvents.HtmlRender();
+            event.begin();
+            CountingWriter counter = event.isEnabled() ? new CountingWriter(out) : null;
+            Writer w = counter != null ? counter : out;
+
+            writePageStart(w);
+            for (Map.Entry<String, Map<String, String>> host : results.entrySet()) {
+                writeHostResultCard(w, host.getKey(), host.getValue());
+            }
+            writePageEnd(w);
+
+            commit(event, "execution", null, results.size(), counter);
+        }
+
+        /** The execution page with writeGroupedResults as its body. */
+        public static void writeGroupedExecutionPage(Writer out, Map<String, Map<String, String>> results)
+                throws IOException {
+            FlightEvents.HtmlRender event = new FlightEvents.HtmlRender();
+            event.begin();
+            CountingWriter counter = event.isEnabled() ? new CountingWriter(out) : null;
+            Writer w = counter != null ? counter : out;
+
+            writePageStart(w);
+            writeGroupedResults(w, results);
+            writePageEnd(w);
+
+            commit(event, "execution-grouped", null, results.size(), counter);
+        }
+
+        /**
+         * One card per command with hosts grouped by identical output, largest
+         * group first ("412 hosts" / "88 hosts"). Each distinct output is
+         * rendered once, so the markup grows with distinct outputs, not hosts.
+         */
+        public static void writeGroupedResults(Writer w, Map<String, Map<String, String>> results)
+                throws IOException {
+            // command -> output -> hosts; outputs are interned, so most lookups compare references
+            Map<String, Map<String, List<String>>> groups = new LinkedHashMap<>();
+            for (Map.Entry<String, Map<String, String>> host : results.entrySet()) {
+                for (Map.Entry<String, String> cmd : host.getValue().entrySet()) {
+                    groups.computeIfAbsent(cmd.getKey(), k -> new HashMap<>())
+                            .computeIfAbsent(String.valueOf(cmd.getValue()), k -> new ArrayList<>())
+                            .add(host.getKey());
                 }
+            }
 
-                sb.append("</ul></div></div>");
+            for (Map.Entry<String, Map<String, List<String>>> cmd : groups.entrySet()) {
+                List<Map.Entry<String, List<String>>> byOutput = new ArrayList<>(cmd.getValue().entrySet());
+                byOutput.sort((a, b) -> Integer.compare(b.getValue().size(), a.getValue().size()));
+
+                w.write("<div class='card mb-4'>");
+                w.write("<div class='card-header bg-primary text-white'>");
+                escapeHtml(w, cmd.getKey());
+                w.write(byOutput.size() == 1 ? " (same output on all hosts)" : " (" + byOutput.size() + " distinct outputs)");
+                w.write("</div>");
+                w.write("<div class='card-body'><ul class='list-group list-group-flush'>");
+                for (Map.Entry<String, List<String>> group : byOutput) {
+                    List<String> hosts = group.getValue();
+                    w.write("<li class='list-group-item'>");
+                    w.write("<details><summary><strong class='text-primary'>");
+                    w.write(hosts.size() + (hosts.size() == 1 ? " host" : " hosts"));
+                    w.write("</strong></summary><small>");
+                    for (int i = 0; i < hosts.size(); i++) {
+                        if (i > 0)
+                            w.write(", ");
+                        escapeHtml(w, hosts.get(i));
+                    }
+                    w.write("</small></details>");
+                    w.write("<pre class='mt-2'>");
+                    writeOutput(w, group.getKey());
+                    w.write("</pre>");
+                    w.write("</li>");
+                }
+                w.write("</ul></div></div>");
             }
+        }
+
+        private static void writePageStart(Writer w) throws IOException {
+            // Start with complete HTML structure
+            w.write("<!DOCTYPE html>");
+            w.write("<html lang='en'>");
+            w.write("<head>");
+            w.write("<meta charset='UTF-8'>");
+            w.write("<title>Execution Results</title>");
+            w.write("<link href='/static/css/bootstrap.min.css' rel='stylesheet'>");
+            w.write("<style>");
+            w.write("body { background-color: #f8f9fa; padding: 20px; }");
+            w.write(".container { max-width: 1200px; margin: 0 auto; }");
+            w.write(
+                    "pre { white-space: pre-wrap; word-wrap: break-word; background: #f1f1f1; padding: 10px; border-radius: 6px; margin: 5px 0; }");
+            w.write(".card-header { font-weight: bold; }");
+            w.write(".list-group-item { border: 1px solid rgba(0,0,0,.125); }");
+            w.write("</style>");
+            w.write("</head>");
+            w.write("<body>");
+
+            w.write("<div class='container'>");
+            w.write("<div class='bg-white p-4 rounded shadow'>");
+            w.write("<h3 class='mb-4 text-center'>Execution Results</h3>");
+        }
 
+        private static void writePageEnd(Writer w) throws IOException {
             // Add back button
-            sb.append("<div class='text-center mt-4'>");
-            sb.append("<a href='/' class='btn btn-primary btn-lg'>Upload Another File</a>");
-            sb.append("</div>");
+            w.write("<div class='text-center mt-4'>");
+            w.write("<a href='/' class='btn btn-primary btn-lg'>Upload Another File</a>");
+            w.write("</div>");
+
+            w.write("</div>"); // Close bg-white
+            w.write("</div>"); // Close container
+            w.write("</body>");
+            w.write("</html>");
+        }
 
-            sb.append("</div>"); // Close bg-white
-            sb.append("</div>"); // Close container
-            sb.append("</body>");
-            sb.append("</html>");
+        public static String buildHostResultCard(String host, Map<String, String> cmdResults) {
+            FlightEvents.HtmlRender event = new FlightEvents.HtmlRender();
+            event.begin();
+            StringWriter sw = new StringWriter();
+            try (Writer out = new PageWriter(sw)) {
+                CountingWriter counter = event.isEnabled() ? new CountingWriter(out) : null;
+                writeHostResultCard(counter != null ? counter : out, host, cmdResults);
+                commit(event, "result-card", host, 1, counter);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // StringWriter does not throw
+            }
+            return sw.toString();
+        }
+
+        public static void writeHostResultCard(Writer w, String host, Map<String, String> cmdResults)
+                throws IOException {
+            w.write("<div class='card mb-4'>");
+            w.write("<div class='card-header bg-primary text-white'>");
+            escapeHtml(w, host);
+            w.write("</div>");
+            w.write("<div class='card-body'><ul class='list-group list-group-flush'>");
+
+            for (Map.Entry<String, String> cmd : cmdResults.entrySet()) {
+                w.write("<li class='list-group-item'>");
+                w.write("<strong class='text-primary'>");
+                escapeHtml(w, cmd.getKey());
+                w.write(":</strong><br>");
+                w.write("<pre class='mt-2'>");
+                writeOutput(w, cmd.getValue());
+                w.write("</pre>");
+                w.write("</li>");
+            }
+
+            w.write("</ul></div></div>");
+        }
+
+        // Validation statuses are server-generated markup and are not escaped
+        public static String buildHostStatusCard(String host, Map<String, String> cmdStatus) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("<div class='card mb-3'>");
+            sb.append("<div class='card-header'><strong>").append(escapeHtml(host)).append("</strong></div>");
+            sb.append("<div class='card-body'><ul class='list-group'>");
+
+            for (String cmdDesc : cmdStatus.keySet()) {
+                sb.append("<li class='list-group-item'>")
+                        .append("<strong>").append(escapeHtml(cmdDesc)).append(":</strong> ")
+                        .append(cmdStatus.get(cmdDesc))
+                        .append("</li>");
+            }
 
+            sb.append("</ul></div></div>");
             return sb.toString();
         }
-        
-        private static String escapeHtml(String text) {
+
+        private static void commit(FlightEvents.HtmlRender event, String page, String host, int hosts,
+                CountingWriter counter) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.page = page;
+                event.host = host;
+                event.hosts = hosts;
+                event.bytes = counter != null ? counter.bytes : 0;
+                event.commit();
+            }
+        }
+
+        // Command output, escaped, with spilled-output markers turned into download links
+        private static void writeOutput(Writer w, String output) throws IOException {
+            if (output == null)
+                return;
+            if (output.indexOf(" bytes omitted: ") < 0) {
+                escapeHtml(w, output);
+                return;
+            }
+            Matcher m = OMITTED.matcher(output);
+            int last = 0;
+            while (m.find()) {
+                escapeHtml(w, output, last, m.start());
+                w.write("[" + m.group(1) + " bytes omitted: <a href='" + m.group(2) + "'>download full output</a>]");
+                last = m.end();
+            }
+            escapeHtml(w, output, last, output.length());
+        }
+
+        static String escapeHtml(String text) {
             if (text == null)
                 return "";
-            return text.replace("&", "&amp;")
-                    .replace("<", "&lt;")
-                    .replace(">", "&gt;")
-                    .replace("\"", "&quot;")
-                    .replace("'", "&#39;");
+            StringWriter sw = new StringWriter(text.length() + 16);
+            try {
+                escapeHtml(sw, text, 0, text.length());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // StringWriter does not throw
+            }
+            return sw.toString();
+        }
+
+        private static void escapeHtml(Writer w, String text) throws IOException {
+            if (text != null)
+                escapeHtml(w, text, 0, text.length());
+        }
+
+        // One pass: runs of plain characters are written as slices, only the five specials are replaced
+        private static void escapeHtml(Writer w, String text, int start, int end) throws IOException {
+            int run = start;
+            for (int i = start; i < end; i++) {
+                String entity;
+                switch (text.charAt(i)) {
+                    case '&':
+                        entity = "&amp;";
+                        break;
+                    case '<':
+                        entity = "&lt;";
+                        break;
+                    case '>':
+                        entity = "&gt;";
+                        break;
+                    case '"':
+                        entity = "&quot;";
+                        break;
+                    case '\'':
+                        entity = "&#39;";
+                        break;
+                    default:
+                        continue;
+                }
+                if (i > run)
+                    w.write(text, run, i - run);
+                w.write(entity);
+                run = i + 1;
+            }
+            if (end > run)
+                w.write(text, run, end - run);
+        }
+
+        /**
+         * Unsynchronized buffer in front of a page's sink. Escaping issues
+         * several small writes per line, and BufferedWriter and StringWriter
+         * take a lock on every one of them; this one hands the sink 8K chunks.
+         */
+        public static final class PageWriter extends Writer {
+            private final Writer sink;
+            private final char[] buf = new char[8192];
+            private int count;
+
+            public PageWriter(Writer sink) {
+                this.sink = sink;
+            }
+
+            /** UTF-8 straight into a response body. */
+            public PageWriter(OutputStream out) {
+                this(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void write(int c) throws IOException {
+                if (count == buf.length)
+                    drain();
+                buf[count++] = (char) c;
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buf.length)
+                        drain();
+                    int n = Math.min(len, buf.length - count);
+                    str.getChars(off, off + n, buf, count);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void write(String str) throws IOException {
+                write(str, 0, str.length());
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buf.length)
+                        drain();
+                    int n = Math.min(len, buf.length - count);
+                    System.arraycopy(cbuf, off, buf, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            private void drain() throws IOException {
+                sink.write(buf, 0, count);
+                count = 0;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                drain();
+                sink.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                drain();
+                sink.close();
+            }
+        }
+
+        /** Counts the UTF-8 size of what passes through, for the render event. */
+        private static final class CountingWriter extends FilterWriter {
+            long bytes;
+
+            CountingWriter(Writer out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int c) throws IOException {
+                out.write(c);
+                bytes += FlightEvents.utf8Length(String.valueOf((char) c));
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                out.write(cbuf, off, len);
+                bytes += FlightEvents.utf8Length(CharBuffer.wrap(cbuf, off, len));
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                out.write(str, off, len);
+                bytes += FlightEvents.utf8Length(str, off, off + len);
+            }
         }
 
     }
     
+    public static String firstValue(Map<String, List<String>> form, String name) {
+        List<String> values = form.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
     public static List<String> parseSelectedHosts(HttpExchange exchange) throws IOException {
         Map<String, List<String>> formData = parseFormMulti(exchange);
         List<String> selectedHosts = formData.get("host");
@@ -232,6 +615,82 @@ public class Helper {
         return selectedHosts;
     }
 
+    // ---------------- JSON ----------------
+    // Minimal writer for Maps, Collections, Strings, Numbers and Booleans
+    public static String toJson(Object value) {
+        StringBuilder sb = new StringBuilder();
+        appendJson(sb, value);
+        return sb.toString();
+    }
+
+    private static void appendJson(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                appendJson(sb, String.valueOf(e.getKey()));
+                sb.append(':');
+                appendJson(sb, e.getValue());
+            }
+            sb.append('}');
+        } else if (value instanceof Collection) {
+            sb.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                appendJson(sb, item);
+            }
+            sb.append(']');
+        } else {
+            String s = value.toString();
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20)
+                            sb.append(String.format("\\u%04x", (int) c));
+                        else
+                            sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+    // ---------------- Server-Sent Events ----------------
+    public static String sseEvent(String event, String data) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("event: ").append(event).append('\n');
+        for (String line : data.split("\r\n|\r|\n", -1))
+            sb.append("data: ").append(line).append('\n');
+        return sb.append('\n').toString();
+    }
+
     // ---------------- Load HTML ----------------
     public static String loadHtml(String filename) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get("static/html/" + filename));
@@ -0,0 +1,231 @@
+import com.github.benmanes.caffeine.cache.Ticker;
+import models.Host;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * Per-host connection health, shared by the SSH and WinRM paths:
+ *
+ * - recent connect latencies per host (last WINDOW);
+ * - a connect timeout derived from them, p99 times ros.health.timeoutFactor,
+ *   within configured bounds, so a host that answers in 50 ms is not given
+ *   10 s;
+ * - jittered exponential retry of connects that failed transiently, each
+ *   attempt taking its own ConnectLimiter permit, released before the
+ *   backoff, so retries are rate limited like first attempts;
+ * - a circuit breaker: after FAILURE_THRESHOLD failed connects in a row, or
+ *   one timed-out connect to a host that has never answered, the host is
+ *   failed fast for OPEN_MS, then one caller gets a trial connect. Each
+ *   failed trial doubles the wait, up to MAX_OPEN_MS.
+ *
+ * Hosts are keyed by address: a dead host is dead for every user.
+ *
+ * Remote commands are not timed from these samples: one host's commands range
+ * from probes to hour-long jobs, so they run unbounded unless
+ * ros.health.execTimeoutMs is set.
+ */
+public class HostHealth {
+
+    // Connect timeout before a host has samples, and its ceiling afterwards
+    private static final long CONNECT_TIMEOUT_MS = Long.getLong("ros.health.connectTimeoutMs", 10_000L);
+    private static final long MIN_CONNECT_TIMEOUT_MS = Long.getLong("ros.health.minConnectTimeoutMs", 2_000L);
+    // Opt-in cap on any one remote command; 0 leaves commands unbounded
+    private static final long EXEC_TIMEOUT_MS = Long.getLong("ros.health.execTimeoutMs", 0L);
+    private static final double TIMEOUT_FACTOR = Double.parseDouble(System.getProperty("ros.health.timeoutFactor", "4"));
+    private static final int RETRIES = Integer.getInteger("ros.health.retries", 2);
+    private static final long RETRY_BASE_MS = Long.getLong("ros.health.retryBaseMs", 250L);
+    private static final int FAILURE_THRESHOLD = Integer.getInteger("ros.health.failureThreshold", 3);
+    private static final long OPEN_MS = Long.getLong("ros.health.openMs", 30_000L);
+    private static final long MAX_OPEN_MS = Long.getLong("ros.health.maxOpenMs", 10 * 60_000L);
+    private static final int WINDOW = 128;
+
+    private final Map<String, State> hosts = new ConcurrentHashMap<>();
+    private final ConnectLimiter limiter;
+    private final Ticker ticker;
+
+    public HostHealth(ConnectLimiter limiter) {
+        this(limiter, Ticker.systemTicker());
+    }
+
+    /** ticker times connects and circuit waits; tests pass one they advance by hand. */
+    HostHealth(ConnectLimiter limiter, Ticker ticker) {
+        this.limiter = limiter;
+        this.ticker = ticker;
+    }
+
+    public interface Attempt<T> {
+        T connect(int timeoutMs) throws Exception;
+    }
+
+    /** Thrown instead of connecting while a host's circuit is open. */
+    public static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    // -------------------- CONNECT --------------------
+    /**
+     * Connects through the breaker with an adaptive timeout, retrying
+     * failures that isTransient accepts with jittered backoff. Any other
+     * failure (e.g. bad credentials) proves the host is up: it is thrown at
+     * once and does not count against the host.
+     */
+    public <T> T connect(Host host, String transport, Predicate<Exception> isTransient, Attempt<T> attempt)
+            throws Exception {
+        State state = state(host);
+        for (int retry = 0;; retry++) {
+            boolean trial = state.acquire(host);
+            long timeoutMs = connectTimeoutMs(host);
+            // Queueing for the permit is not connect latency, so the clock starts once it is held
+            ConnectLimiter.Permit permit;
+            try {
+                permit = limiter.acquire(host);
+            } catch (InterruptedException | TimeoutException e) {
+                if (trial)
+                    state.endTrial(); // never tried: the next caller gets the trial
+                throw e;
+            }
+            long start = ticker.read();
+            try {
+                T connection = attempt.connect((int) timeoutMs);
+                state.connected(ticker.read() - start);
+                return connection;
+            } catch (Exception e) {
+                if (!isTransient.test(e)) {
+                    state.reachable();
+                    throw e;
+                }
+                // A host that never answered and let the whole timeout run out is most likely down
+                boolean dead = state.neverConnected() && ticker.read() - start >= timeoutMs * 900_000L;
+                if (state.failed(dead) || retry >= RETRIES)
+                    throw e;
+            } finally {
+                permit.close();
+            }
+            Metrics.RETRIES.inc(host.getHost(), transport);
+            // Full jitter keeps hosts that failed together from retrying together
+            Thread.sleep(ThreadLocalRandom.current().nextLong(Math.max(1, RETRY_BASE_MS << retry)) + 1);
+        }
+    }
+
+    /** Fails fast while the circuit is open, without claiming the trial connect. */
+    public void checkAvailable(Host host) throws CircuitOpenException {
+        state(host).check(host, false);
+    }
+
+    // -------------------- TIMEOUTS --------------------
+    public long connectTimeoutMs(Host host) {
+        return state(host).connectTimeoutMs();
+    }
+
+    /** The configured cap on one remote command, 0 when there is none. */
+    public long execTimeoutMs() {
+        return EXEC_TIMEOUT_MS;
+    }
+
+    // -------------------- STATS --------------------
+    /** Hosts whose circuit is open, with the seconds left before a trial connect. */
+    public Map<String, Long> getOpenCircuits() {
+        Map<String, Long> open = new TreeMap<>();
+        long now = nowMs();
+        hosts.forEach((host, state) -> {
+            long left = state.openLeftMs(now);
+            if (left >= 0)
+                open.put(host, (left + 999) / 1000);
+        });
+        return open;
+    }
+
+    private State state(Host host) {
+        return hosts.computeIfAbsent(host.getHost(), k -> new State());
+    }
+
+    private long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    private final class State {
+        // guarded by this
+        private final long[] connectNanos = new long[WINDOW];
+        private long connects;
+        private int failures;
+        private long openUntil;
+        private long openFor = OPEN_MS;
+        private boolean trial; // a caller is testing an open circuit
+
+        /** True when the caller got the trial connect of an open circuit. */
+        synchronized boolean acquire(Host host) throws CircuitOpenException {
+            return check(host, true);
+        }
+
+        synchronized boolean check(Host host, boolean claimTrial) throws CircuitOpenException {
+            if (failures < FAILURE_THRESHOLD)
+                return false;
+            long now = nowMs();
+            if (now >= openUntil && !trial) {
+                trial = claimTrial;
+                return claimTrial;
+            }
+            Metrics.CIRCUIT_REJECTIONS.inc(host.getHost());
+            throw new CircuitOpenException("Host " + host.getHost() + " unreachable after " + failures
+                    + " failed connects; next attempt in " + Math.max(1, (openUntil - now + 999) / 1000) + " s");
+        }
+
+        synchronized void connected(long nanos) {
+            connectNanos[(int) (connects++ % WINDOW)] = nanos;
+            reachable();
+        }
+
+        synchronized void reachable() {
+            failures = 0;
+            trial = false;
+            openFor = OPEN_MS;
+        }
+
+        synchronized void endTrial() {
+            trial = false;
+        }
+
+        synchronized boolean neverConnected() {
+            return connects == 0;
+        }
+
+        /** Records a failed connect, opening the circuit at once if dead; true when it is open. */
+        synchronized boolean failed(boolean dead) {
+            failures = dead ? Math.max(failures + 1, FAILURE_THRESHOLD) : failures + 1;
+            if (trial)
+                openFor = Math.min(2 * openFor, MAX_OPEN_MS);
+            trial = false;
+            if (failures < FAILURE_THRESHOLD)
+                return false;
+            openUntil = nowMs() + openFor;
+            return true;
+        }
+
+        synchronized long connectTimeoutMs() {
+            long count = Math.min(connects, WINDOW);
+            if (count == 0)
+                return CONNECT_TIMEOUT_MS;
+            long[] sorted = Arrays.copyOf(connectNanos, (int) count);
+            Arrays.sort(sorted);
+            long p99 = sorted[(int) Math.ceil(count * 0.99) - 1];
+            long adaptive = (long) (p99 / 1_000_000.0 * TIMEOUT_FACTOR);
+            return Math.min(CONNECT_TIMEOUT_MS, Math.max(MIN_CONNECT_TIMEOUT_MS, adaptive));
+        }
+
+        synchronized long openLeftMs(long now) {
+            return failures < FAILURE_THRESHOLD ? -1 : Math.max(0, openUntil - now);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import com.jcraft.jsch.Session;
+import models.Command;
+import models.Host;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Validates or executes a workbook's commands on a single host. Shared by the
+ * synchronous handlers, the streaming endpoint and background jobs; every
+ * failure is reported per command, nothing is thrown.
+ */
+public class HostRunner {
+
+    // One generated probe script per host instead of one exec per command/option/path
+    private static final boolean BATCH_VALIDATION = Boolean.parseBoolean(System.getProperty("ros.validate.batch", "true"));
+
+    // Concurrent SSH exec channels / WinRM shells per host; 1 keeps workbook commands strictly sequential
+    private static final int EXEC_CHANNELS_PER_HOST = Integer.getInteger("ros.exec.channelsPerHost", 1);
+
+    private final HostSessionManager hostSessionManager;
+    private final SSHManager sshManager;
+    private final WinRMManager winrmManager;
+
+    public HostRunner(HostSessionManager hostSessionManager, SSHManager sshManager, WinRMManager winrmManager) {
+        this.hostSessionManager = hostSessionManager;
+        this.sshManager = sshManager;
+        this.winrmManager = winrmManager;
+    }
+
+    // -------------------- VALIDATE --------------------
+    /** Status per command description; job may be null when the run cannot be cancelled. */
+    public Map<String, String> validate(Host host, List<Command> commands, Job job) {
+        Session session = null;
+        try {
+            if (host.isLinux())
+                session = leaseSession(host, job);
+            return validate(host, commands, session);
+        } catch (Exception e) {
+            Map<String, String> cmdStatus = new LinkedHashMap<>();
+            for (Command cmd : commands)
+                cmdStatus.put(cmd.getDescription(), "<span class='text-danger'>Host connection failed</span>");
+            return cmdStatus;
+        } finally {
+            if (job != null)
+                job.untrack(host);
+            hostSessionManager.releaseSSHSession(host, session);
+        }
+    }
+
+    // session is the leased SSH session for Linux hosts; Windows hosts lease their own WinRM shell
+    private Map<String, String> validate(Host host, List<Command> commands, Session session) {
+        Map<String, String> cmdStatus = new LinkedHashMap<>();
+        Map<String, String> statusByCmd;
+        if (host.isLinux()) {
+            statusByCmd = BATCH_VALIDATION
+                    ? sshManager.validateCommandsBatch(host, commandLines(commands), session)
+                    : sshManager.validateCommands(host, commandLines(commands), session);
+        } else if (host.isWindows()) {
+            // Always batched: one PowerShell probe script instead of a round trip per check
+            statusByCmd = winrmManager.validateCommandsBatch(host, commandLines(commands));
+        } else {
+            return cmdStatus;
+        }
+
+        for (Command cmd : commands)
+            cmdStatus.put(cmd.getDescription(), statusByCmd.get(cmd.getCommand()));
+        return cmdStatus;
+    }
+
+    public static boolean isValid(Host host, Map<String, String> cmdStatus) {
+        for (String status : cmdStatus.values()) {
+            if (!isValid(status))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isValid(String status) {
+        return status != null && status.contains("Valid");
+    }
+
+    // -------------------- EXECUTE --------------------
+    /** Output per "description : command"; job may be null when the run cannot be cancelled. */
+    public Map<String, String> execute(Host host, List<Command> commands, Job job) {
+        Session session = null;
+        try {
+            if (host.isLinux())
+                session = leaseSession(host, job);
+            return execute(host, commands, job, session);
+        } catch (Exception e) {
+            Map<String, String> execResults = new LinkedHashMap<>();
+            for (Command cmd : commands) {
+                execResults.put(cmd.getDescription(), failure(e, job));
+            }
+            return execResults;
+        } finally {
+            if (job != null)
+                job.untrack(host);
+            // Hand the session back so the host stays warm for the next run
+            hostSessionManager.releaseSSHSession(host, session);
+        }
+    }
+
+    private Map<String, String> execute(Host host, List<Command> commands, Job job, Session session)
+            throws InterruptedException {
+        Map<String, String> execResults = new LinkedHashMap<>(); // Create new map for each host
+
+        // Both transports hand back one future per command, in order
+        List<CompletableFuture<String>> outputs = null;
+        if (host.isLinux()) {
+            outputs = sshManager.execCommandsAsync(host, commandLines(commands), session, EXEC_CHANNELS_PER_HOST);
+        } else if (host.isWindows()) {
+            outputs = winrmManager.execCommandsAsync(host, commandLines(commands), EXEC_CHANNELS_PER_HOST, job);
+        }
+
+        for (int i = 0; i < commands.size(); i++) {
+            Command cmd = commands.get(i);
+            try {
+                // Identical outputs across hosts already share one instance (OutputInterner)
+                String output = outputs == null ? "Unknown host type" : outputs.get(i).join();
+                execResults.put(cmd.getDescription() + " : " + cmd.getCommand(), output);
+            } catch (Exception ex) {
+                // A command cut off by cancel() fails; only commands that ran to the end keep their output
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                execResults.put(cmd.getDescription() + " : " + cmd.getCommand(), failure(cause, job));
+            }
+        }
+        return execResults;
+    }
+
+    // -------------------- VALIDATE AND RUN --------------------
+    /**
+     * Validates the host and, as soon as every command passes, executes the
+     * workbook on the same leased session: one handshake per host, and no
+     * host waits for the rest of the fleet to finish validating. Results are
+     * keyed like execute(); a host that fails validation runs nothing and
+     * reports why per command.
+     */
+    public Map<String, String> validateAndExecute(Host host, List<Command> commands, Job job) {
+        Session session = null;
+        try {
+            if (host.isLinux())
+                session = leaseSession(host, job);
+            Map<String, String> cmdStatus = validate(host, commands, session);
+            if (isValid(host, cmdStatus) && (job == null || !job.isCancelled()))
+                return execute(host, commands, job, session);
+
+            Map<String, String> skipped = new LinkedHashMap<>();
+            for (Command cmd : commands) {
+                String status = cmdStatus.get(cmd.getDescription());
+                skipped.put(cmd.getDescription() + " : " + cmd.getCommand(), job != null && job.isCancelled()
+                        ? "Cancelled"
+                        : isValid(status) ? "Not run: another command failed validation"
+                        : "Not run: " + plainText(status));
+            }
+            return skipped;
+        } catch (Exception e) {
+            Map<String, String> execResults = new LinkedHashMap<>();
+            for (Command cmd : commands)
+                execResults.put(cmd.getDescription() + " : " + cmd.getCommand(), failure(e, job));
+            return execResults;
+        } finally {
+            if (job != null)
+                job.untrack(host);
+            hostSessionManager.releaseSSHSession(host, session);
+        }
+    }
+
+    private Session leaseSession(Host host, Job job) throws Exception {
+        Session session = hostSessionManager.leaseSSHSession(host);
+        if (job != null)
+            job.track(host, session);
+        return session;
+    }
+
+    // Once the job is cancelled, failures are the disconnect cancel() caused
+    private static String failure(Throwable e, Job job) {
+        return job != null && job.isCancelled() ? "Cancelled" : "Error: " + e.getMessage();
+    }
+
+    private static List<String> commandLines(List<Command> commands) {
+        List<String> cmdLines = new ArrayList<>(commands.size());
+        for (Command cmd : commands)
+            cmdLines.add(cmd.getCommand());
+        return cmdLines;
+    }
+
+    // Validation statuses are markup; results are shown as text
+    private static String plainText(String status) {
+        return status == null ? "not validated" : status.replaceAll("<[^>]*>", "");
+    }
+}
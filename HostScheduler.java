@@ -0,0 +1,147 @@
+import models.Host;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Runs per-host work with a global concurrency limit. Each host gets its own
+ * FIFO queue and hosts are served round-robin, so one host with many queued
+ * runs cannot starve the rest of the fleet. Work runs on virtual threads when
+ * the JDK has them, otherwise on a fixed pool sized to the global limit.
+ */
+public class HostScheduler {
+
+    private static final int MAX_CONCURRENT = Integer.getInteger("ros.scheduler.maxConcurrent", 128);
+    private static final int MAX_PER_HOST = Integer.getInteger("ros.scheduler.maxPerHost", 2);
+
+    private final ExecutorService workers;
+    private final int maxConcurrent;
+    private final int maxPerHost;
+
+    // guarded by this
+    private final Map<String, HostQueue> queues = new HashMap<>();
+    private final Deque<HostQueue> ready = new ArrayDeque<>();
+    private int running;
+    private int queued;
+
+    public HostScheduler() {
+        this(MAX_CONCURRENT, MAX_PER_HOST);
+    }
+
+    public HostScheduler(int maxConcurrent, int maxPerHost) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        this.workers = newWorkerPool(maxConcurrent);
+    }
+
+    // -------------------- SUBMIT --------------------
+    public <T> CompletableFuture<T> submit(Host host, Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable job = () -> {
+            try {
+                future.complete(task.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        };
+
+        synchronized (this) {
+            HostQueue hq = queues.computeIfAbsent(host.getHost(), HostQueue::new);
+            hq.tasks.add(job);
+            queued++;
+            markReady(hq);
+            dispatch();
+        }
+        return future;
+    }
+
+    public CompletableFuture<Void> run(Host host, Runnable task) {
+        return submit(host, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // -------------------- DISPATCH --------------------
+    private void dispatch() {
+        while (running < maxConcurrent && !ready.isEmpty()) {
+            HostQueue hq = ready.pollFirst();
+            hq.ready = false;
+            Runnable job = hq.tasks.poll();
+            if (job == null)
+                continue;
+
+            queued--;
+            running++;
+            hq.running++;
+            markReady(hq); // back of the line if it still has work
+
+            workers.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    finished(hq);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(HostQueue hq) {
+        running--;
+        hq.running--;
+        if (hq.tasks.isEmpty() && hq.running == 0)
+            queues.remove(hq.host);
+        else
+            markReady(hq);
+        dispatch();
+    }
+
+    private void markReady(HostQueue hq) {
+        if (!hq.ready && !hq.tasks.isEmpty() && hq.running < maxPerHost) {
+            hq.ready = true;
+            ready.addLast(hq);
+        }
+    }
+
+    // -------------------- STATS --------------------
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private static ExecutorService newWorkerPool(int size) {
+        try {
+            // JDK 21+: one cheap virtual thread per host task
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(size, r -> {
+                Thread t = new Thread(r, "host-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static class HostQueue {
+        final String host;
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        int running;
+        boolean ready;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+    }
+}
@@ -1,62 +1,410 @@
 import models.Host;
 import com.jcraft.jsch.*;
+import io.cloudsoft.winrm4j.client.ShellCommand;
+import io.cloudsoft.winrm4j.client.WinRmClient;
 import io.cloudsoft.winrm4j.client.WinRmClientContext;
-import io.cloudsoft.winrm4j.winrm.*;
-
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class HostSessionManager {
 
-    private final Map<String, Session> sshSessions = new ConcurrentHashMap<>();
-    private final Map<String, WinRmTool> winrmSessions = new ConcurrentHashMap<>();
-    private final Map<String, WinRmClientContext> winrmContexts = new ConcurrentHashMap<>();
+    private static final int SSH_PORT = Integer.getInteger("ros.ssh.port", 22);
+    private static final int MAX_SESSIONS_PER_HOST = Integer.getInteger("ros.ssh.maxSessionsPerHost", 4);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("ros.ssh.idleTimeoutMs", 5 * 60 * 1000L);
+    private static final long LEASE_TIMEOUT_MS = Long.getLong("ros.ssh.leaseTimeoutMs", 60 * 1000L);
+    private static final int KEEP_ALIVE_INTERVAL_MS = Integer.getInteger("ros.ssh.keepAliveMs", 30 * 1000);
+    private static final int KEEP_ALIVE_COUNT_MAX = 3;
+    private static final long HEALTH_CHECK_AFTER_MS = 10 * 1000L;
+    private static final int WINRM_PORT = Integer.getInteger("ros.winrm.port", 5985);
+    private static final int MAX_WINRM_SHELLS_PER_HOST = Integer.getInteger("ros.winrm.maxShellsPerHost", 2);
+    // Keys the credential part of pool keys; random per process, so no stable password hash is kept
+    private static final byte[] CREDENTIAL_KEY = new SecureRandom().generateSeed(32);
+
+    private final ConnectLimiter connectLimiter = new ConnectLimiter();
+    private final HostHealth health = new HostHealth(connectLimiter);
+    private final Map<String, SSHPool> sshSessions = new ConcurrentHashMap<>();
+    private final Map<String, WinRMPool> winrmShells = new ConcurrentHashMap<>();
+    private WinRmClientContext winrmContext; // guarded by this
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public HostSessionManager() {
+        evictor.scheduleWithFixedDelay(this::evictIdleSessions, 30, 30, TimeUnit.SECONDS);
+        evictor.scheduleWithFixedDelay(this::evictIdleShells, 30, 30, TimeUnit.SECONDS);
+    }
+
+    public HostHealth getHealth() {
+        return health;
+    }
+
+    public ConnectLimiter getConnectLimiter() {
+        return connectLimiter;
+    }
 
     // -------------------- SSH --------------------
+    /**
+     * Connects through the host's circuit breaker, retrying transient
+     * failures (see HostHealth); each attempt waits for the ConnectLimiter.
+     */
     public Session createNewSSHSession(Host host) throws Exception {
+        return health.connect(host, "ssh", HostSessionManager::isTransientSSHFailure,
+                timeoutMs -> connectSSH(host, timeoutMs));
+    }
+
+    // Auth failures come from a live host; anything else at connect time may pass
+    private static boolean isTransientSSHFailure(Exception e) {
+        return e instanceof JSchException && !String.valueOf(e.getMessage()).toLowerCase().contains("auth");
+    }
+
+    private Session connectSSH(Host host, int timeoutMs) throws JSchException {
         JSch jsch = new JSch();
-        Session session = jsch.getSession(host.getUser(), host.getHost(), 22);
+        Session session = jsch.getSession(host.getUser(), host.getHost(), SSH_PORT);
         session.setPassword(host.getPass());
         Properties config = new Properties();
         config.put("StrictHostKeyChecking", "no");
         session.setConfig(config);
-        session.connect(10000);
+        session.setServerAliveInterval(KEEP_ALIVE_INTERVAL_MS);
+        session.setServerAliveCountMax(KEEP_ALIVE_COUNT_MAX);
+        FlightEvents.SshConnect event = new FlightEvents.SshConnect();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            session.connect(timeoutMs);
+            event.success = true;
+        } catch (JSchException e) {
+            Metrics.SSH_FAILURES.inc(host.getHost(), "connect");
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.host = host.getHost();
+                event.user = host.getUser();
+                event.port = SSH_PORT;
+                event.commit();
+            }
+        }
+        Metrics.SSH_CONNECT.since(start, host.getHost());
         return session;
     }
 
-    public void closeSSHSession(String host) {
-        Session session = sshSessions.remove(host);
-        if (session != null && session.isConnected())
+    /**
+     * Leases a connected session for the host from the pool, dialing a new one
+     * only when no healthy idle session is available. At most
+     * MAX_SESSIONS_PER_HOST sessions are leased per host at any time; every
+     * lease must be handed back with releaseSSHSession.
+     */
+    public Session leaseSSHSession(Host host) throws Exception {
+        health.checkAvailable(host); // before queueing for a permit
+        SSHPool pool = sshSessions.computeIfAbsent(poolKey(host), k -> new SSHPool());
+        if (!pool.permits.tryAcquire(LEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            throw new TimeoutException("Timed out waiting for an SSH session to " + host.getHost());
+
+        try {
+            IdleSession idle;
+            while ((idle = pool.idle.pollFirst()) != null) {
+                if (isHealthy(idle))
+                    return idle.session;
+                idle.session.disconnect();
+            }
+            return createNewSSHSession(host);
+        } catch (Exception e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /** Returns a leased session to the pool, keeping it warm for the next run. */
+    public void releaseSSHSession(Host host, Session session) {
+        if (session == null)
+            return;
+        SSHPool pool = sshSessions.get(poolKey(host));
+        if (pool == null) {
+            session.disconnect();
+            return;
+        }
+        if (session.isConnected() && pool.idle.size() < MAX_SESSIONS_PER_HOST)
+            pool.idle.offerFirst(new IdleSession(session));
+        else
+            session.disconnect();
+        pool.permits.release();
+    }
+
+    /** Hands back a leased session that must not be reused, e.g. after a transport error. */
+    public void invalidateSSHSession(Host host, Session session) {
+        if (session != null)
             session.disconnect();
+        SSHPool pool = sshSessions.get(poolKey(host));
+        if (pool != null)
+            pool.permits.release();
+    }
+
+    public void closeSSHSession(String host) {
+        sshSessions.forEach((key, pool) -> {
+            if (account(key).endsWith("@" + host))
+                drain(pool);
+        });
+    }
+
+    private void drain(SSHPool pool) {
+        IdleSession idle;
+        while ((idle = pool.idle.pollFirst()) != null)
+            idle.session.disconnect();
+    }
+
+    private boolean isHealthy(IdleSession idle) {
+        if (!idle.session.isConnected())
+            return false;
+        if (System.currentTimeMillis() - idle.since < HEALTH_CHECK_AFTER_MS)
+            return true;
+        try {
+            idle.session.sendKeepAliveMsg();
+            return idle.session.isConnected();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void evictIdleSessions() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        for (SSHPool pool : sshSessions.values()) {
+            for (IdleSession idle : pool.idle) {
+                if ((idle.since < cutoff || !idle.session.isConnected()) && pool.idle.removeFirstOccurrence(idle))
+                    idle.session.disconnect();
+            }
+        }
+    }
+
+    // -------------------- STATS --------------------
+    /** Sessions currently leased, per user@host pool. */
+    public Map<String, Integer> getLeasedSessions() {
+        Map<String, Integer> leased = new TreeMap<>();
+        sshSessions.forEach((key, pool) -> leased.merge(account(key),
+                MAX_SESSIONS_PER_HOST - pool.permits.availablePermits(), Integer::sum));
+        return leased;
+    }
+
+    /** Connected sessions parked for reuse, per user@host pool. */
+    public Map<String, Integer> getIdleSessions() {
+        Map<String, Integer> idle = new TreeMap<>();
+        sshSessions.forEach((key, pool) -> idle.merge(account(key), pool.idle.size(), Integer::sum));
+        return idle;
+    }
+
+    /** Callers blocked waiting for a lease, per user@host pool. */
+    public Map<String, Integer> getWaitingLeases() {
+        Map<String, Integer> waiting = new TreeMap<>();
+        sshSessions.forEach((key, pool) -> waiting.merge(account(key), pool.permits.getQueueLength(), Integer::sum));
+        return waiting;
+    }
+
+    public int getMaxSessionsPerHost() {
+        return MAX_SESSIONS_PER_HOST;
+    }
+
+    /**
+     * Sessions and shells are pooled per user@host and password, so an idle
+     * one is only handed to a caller holding the credentials it was opened
+     * with; a wrong or empty password gets a pool of its own and must log in.
+     */
+    private static String poolKey(Host host) {
+        return host.getUser() + "@" + host.getHost() + "#" + credential(host.getPass());
+    }
+
+    // user@host of a pool key, for stats and closing by host
+    private static String account(String poolKey) {
+        return poolKey.substring(0, poolKey.lastIndexOf('#'));
+    }
+
+    private static String credential(String pass) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(CREDENTIAL_KEY, "HmacSHA256"));
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(mac.doFinal(String.valueOf(pass).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private static class SSHPool {
+        final Semaphore permits = new Semaphore(MAX_SESSIONS_PER_HOST, true);
+        final Deque<IdleSession> idle = new ConcurrentLinkedDeque<>();
+    }
+
+    private static class IdleSession {
+        final Session session;
+        final long since = System.currentTimeMillis();
+
+        IdleSession(Session session) {
+            this.session = session;
+        }
     }
 
     // -------------------- WinRM --------------------
-    public WinRmTool getWinRMSession(Host host) {
-        if (winrmSessions.containsKey(host.getHost()))
-            return winrmSessions.get(host.getHost());
-
-        WinRmClientContext context = WinRmClientContext.newInstance();
-        WinRmTool tool = WinRmTool.Builder.builder(host.getHost(), host.getUser(), host.getPass())
-                .port(5985)
-                .useHttps(false)
-                .disableCertificateChecks(true)
-                .context(context)
-                .build();
-        winrmSessions.put(host.getHost(), tool);
-        winrmContexts.put(host.getHost(), context);
-        return tool;
+    /**
+     * Leases an open remote shell on the host, creating the client and shell
+     * only when no idle one is pooled. Commands run in the same shell until it
+     * is released, so a host's commands share one shell instead of paying for
+     * create/delete around each. At most MAX_WINRM_SHELLS_PER_HOST are leased
+     * per host; every lease must be handed back with releaseWinRMShell, or
+     * invalidateWinRMShell after a transport error.
+     */
+    public WinRmShell leaseWinRMShell(Host host) throws Exception {
+        health.checkAvailable(host);
+        WinRMPool pool = winrmShells.computeIfAbsent(poolKey(host), k -> new WinRMPool());
+        if (!pool.permits.tryAcquire(LEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            throw new TimeoutException("Timed out waiting for a WinRM shell on " + host.getHost());
+
+        try {
+            WinRmShell idle = pool.idle.pollFirst();
+            return idle != null ? idle : createWinRMShell(host);
+        } catch (Exception e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    public void releaseWinRMShell(Host host, WinRmShell shell) {
+        if (shell == null)
+            return;
+        WinRMPool pool = winrmShells.get(poolKey(host));
+        if (pool == null) {
+            shell.close();
+            return;
+        }
+        if (pool.idle.size() < MAX_WINRM_SHELLS_PER_HOST) {
+            shell.since = System.currentTimeMillis();
+            pool.idle.offerFirst(shell);
+        } else {
+            shell.close();
+        }
+        pool.permits.release();
+    }
+
+    public void invalidateWinRMShell(Host host, WinRmShell shell) {
+        if (shell != null)
+            shell.close();
+        WinRMPool pool = winrmShells.get(poolKey(host));
+        if (pool != null)
+            pool.permits.release();
+    }
+
+    private WinRmShell createWinRMShell(Host host) throws Exception {
+        return health.connect(host, "winrm", HostSessionManager::isTransientWinRMFailure, timeoutMs -> {
+            WinRmClient client = WinRmClient.builder("http://" + host.getHost() + ":" + WINRM_PORT + "/wsman")
+                    .credentials(host.getUser(), host.getPass())
+                    .disableCertificateChecks(true)
+                    .connectionTimeout(timeoutMs)
+                    .context(winrmContext())
+                    .build();
+            try {
+                return new WinRmShell(client, client.createShell());
+            } catch (RuntimeException e) {
+                client.close();
+                throw e;
+            }
+        });
+    }
+
+    // A rejected login (HTTP 401) comes from a live host
+    private static boolean isTransientWinRMFailure(Exception e) {
+        String message = String.valueOf(e.getMessage());
+        return !message.contains("401") && !message.contains("Unauthorized");
+    }
+
+    // One CXF bus for all WinRM clients, started on first use
+    private synchronized WinRmClientContext winrmContext() {
+        if (winrmContext == null)
+            winrmContext = WinRmClientContext.newInstance();
+        return winrmContext;
     }
 
     public void closeWinRMSession(String host) {
-        WinRmTool tool = winrmSessions.remove(host);
-        WinRmClientContext context = winrmContexts.remove(host);
-        if (context != null)
-            context.shutdown();
+        winrmShells.forEach((key, pool) -> {
+            if (account(key).endsWith("@" + host))
+                drain(pool);
+        });
+    }
+
+    private void drain(WinRMPool pool) {
+        WinRmShell idle;
+        while ((idle = pool.idle.pollFirst()) != null)
+            idle.close();
+    }
+
+    private void evictIdleShells() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        for (WinRMPool pool : winrmShells.values()) {
+            for (WinRmShell idle : pool.idle) {
+                if (idle.since < cutoff && pool.idle.removeFirstOccurrence(idle))
+                    idle.close();
+            }
+        }
+    }
+
+    /** Shells currently leased, per user@host pool. */
+    public Map<String, Integer> getLeasedWinRMShells() {
+        Map<String, Integer> leased = new TreeMap<>();
+        winrmShells.forEach((key, pool) -> leased.merge(account(key),
+                MAX_WINRM_SHELLS_PER_HOST - pool.permits.availablePermits(), Integer::sum));
+        return leased;
+    }
+
+    /** Open shells parked for reuse, per user@host pool. */
+    public Map<String, Integer> getIdleWinRMShells() {
+        Map<String, Integer> idle = new TreeMap<>();
+        winrmShells.forEach((key, pool) -> idle.merge(account(key), pool.idle.size(), Integer::sum));
+        return idle;
+    }
+
+    private static class WinRMPool {
+        final Semaphore permits = new Semaphore(MAX_WINRM_SHELLS_PER_HOST, true);
+        final Deque<WinRmShell> idle = new ConcurrentLinkedDeque<>();
+    }
+
+    /** A WinRM client with one open remote shell; used by one caller at a time. */
+    public static class WinRmShell {
+        private final WinRmClient client;
+        private final ShellCommand shell;
+        volatile long since = System.currentTimeMillis();
+
+        WinRmShell(WinRmClient client, ShellCommand shell) {
+            this.client = client;
+            this.shell = shell;
+        }
+
+        /** Runs the command once in this shell, streaming stdout and stderr; returns the exit code. */
+        public int execute(String command, Writer out, Writer err) {
+            return shell.execute(command, out, err);
+        }
+
+        void close() {
+            try {
+                shell.close(); // deletes the remote shell
+            } catch (RuntimeException e) {
+                // already gone on the server side
+            }
+            try {
+                client.close();
+            } catch (RuntimeException e) {
+                // nothing left to release
+            }
+        }
     }
 
     public void closeAll() {
-        sshSessions.keySet().forEach(this::closeSSHSession);
-        winrmSessions.keySet().forEach(this::closeWinRMSession);
+        sshSessions.values().forEach(this::drain);
+        winrmShells.values().forEach(this::drain);
     }
 }
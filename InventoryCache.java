@@ -0,0 +1,133 @@
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import models.Inventory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsed workbooks keyed by the SHA-256 of the file content, so an execute
+ * after a validate, or a re-upload of the same workbook, skips POI entirely.
+ * Entries are weighed by row count to bound memory.
+ *
+ * The uploaded files behind the ids are kept for reparsing after eviction,
+ * at most ros.inventory.maxUploads of them and for
+ * ros.inventory.uploadRetainHours after last use; a dropped upload id's file
+ * is deleted.
+ */
+public class InventoryCache {
+
+    private static final long MAX_ROWS = Long.getLong("ros.inventory.maxCachedRows", 500_000L);
+    private static final long MAX_UPLOADS = Long.getLong("ros.inventory.maxUploads", 1_000L);
+    private static final long UPLOAD_RETAIN_HOURS = Long.getLong("ros.inventory.uploadRetainHours", 24L);
+
+    private final Cache<String, Inventory> inventories;
+    private final Cache<String, String> paths;
+
+    public InventoryCache() {
+        this.inventories = Caffeine.newBuilder()
+                .maximumWeight(MAX_ROWS)
+                .weigher((String key, Inventory inv) -> 1 + inv.getHosts().size() + inv.getCommands().size())
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .recordStats()
+                .build();
+        this.paths = Caffeine.newBuilder()
+                .maximumSize(MAX_UPLOADS)
+                .expireAfterAccess(UPLOAD_RETAIN_HOURS, TimeUnit.HOURS)
+                .removalListener((String id, String path, RemovalCause cause) -> {
+                    if (path != null && cause != RemovalCause.REPLACED)
+                        delete(path);
+                })
+                .build();
+    }
+
+    public Inventory load(String path) throws Exception {
+        return get(register(path));
+    }
+
+    /**
+     * Records an uploaded workbook and returns its upload id (the content
+     * digest), which later requests use instead of a server-side "last file".
+     * A second upload of content already on disk is deleted in favour of
+     * the first.
+     */
+    public String register(String path) throws Exception {
+        String digest = digest(path);
+        String kept = paths.asMap().putIfAbsent(digest, path);
+        if (kept != null && !kept.equals(path)) {
+            if (Files.exists(Paths.get(kept))) {
+                delete(path);
+            } else {
+                paths.put(digest, path);
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * The parsed workbook for an upload id, reparsed if evicted; null if
+     * unknown, dropped, or if the file no longer has the id's content.
+     */
+    public Inventory get(String uploadId) throws Exception {
+        if (uploadId == null)
+            return null;
+        String path = paths.getIfPresent(uploadId); // also keeps the file for as long as the id is used
+        if (path == null) {
+            inventories.invalidate(uploadId);
+            return null;
+        }
+        Inventory inventory = inventories.getIfPresent(uploadId);
+        if (inventory == null) {
+            if (!Files.exists(Paths.get(path)) || !uploadId.equals(digest(path))) {
+                paths.invalidate(uploadId);
+                return null;
+            }
+            long start = System.nanoTime();
+            inventory = ExcelParser.parseInventory(path);
+            Metrics.CACHE_LOAD.since(start, "inventory");
+            inventories.put(uploadId, inventory);
+        }
+        return inventory;
+    }
+
+    public void clear() {
+        inventories.invalidateAll();
+    }
+
+    public CacheStats cacheStats() {
+        return inventories.stats();
+    }
+
+    public String stats() {
+        return "InventoryCache: hits=" + inventories.stats().hitCount() + ", misses="
+                + inventories.stats().missCount();
+    }
+
+    static String digest(String path) throws Exception {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        byte[] buf = new byte[8192];
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            int n;
+            while ((n = in.read(buf)) != -1)
+                sha.update(buf, 0, n);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static void delete(String path) {
+        try {
+            Files.deleteIfExists(Paths.get(path));
+        } catch (IOException e) {
+            System.out.println("Could not delete upload " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import com.jcraft.jsch.Session;
+import models.Command;
+import models.Host;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * One validate, execute or validate-and-run pass over a set of hosts. Tracks per-host state and
+ * results, keeps an ordered log of finished hosts for streaming clients, and
+ * holds the live SSH sessions and WinRM shells so cancel() can tear them down.
+ */
+public class Job {
+
+    public enum Mode { VALIDATE, EXECUTE, RUN }
+
+    public enum State { PENDING, RUNNING, DONE, CANCELLED }
+
+    private final String id;
+    private final Mode mode;
+    private final List<Host> hosts;
+    private final List<Command> commands;
+    private final long createdAt = System.currentTimeMillis();
+
+    private final Map<String, State> hostStates = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> results = new ConcurrentHashMap<>();
+    private final Map<String, Session> liveSessions = new ConcurrentHashMap<>();
+    private final Set<HostSessionManager.WinRmShell> liveShells = ConcurrentHashMap.newKeySet();
+
+    // guarded by this
+    private final List<String> finishedHosts = new ArrayList<>();
+    private volatile boolean cancelled;
+    private volatile long finishedAt;
+
+    public Job(String id, Mode mode, List<Host> hosts, List<Command> commands) {
+        this.id = id;
+        this.mode = mode;
+        this.hosts = hosts;
+        this.commands = commands;
+        for (Host host : hosts)
+            hostStates.put(host.getHost(), State.PENDING);
+        if (hosts.isEmpty())
+            finishedAt = createdAt;
+    }
+
+    // -------------------- LIFECYCLE --------------------
+    void hostStarted(Host host) {
+        hostStates.put(host.getHost(), State.RUNNING);
+    }
+
+    synchronized void hostFinished(Host host, Map<String, String> hostResults) {
+        results.put(host.getHost(), hostResults);
+        hostStates.put(host.getHost(), cancelled ? State.CANCELLED : State.DONE);
+        finishedHosts.add(host.getHost());
+        if (finishedHosts.size() == hosts.size())
+            finishedAt = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Pending hosts are skipped; running ones are disconnected, which closes
+     * their channels, and their WinRM shells are closed, which fails the
+     * command running in them.
+     */
+    public void cancel() {
+        if (isFinished())
+            return;
+        cancelled = true;
+        liveSessions.values().forEach(Session::disconnect);
+        liveShells.forEach(HostSessionManager.WinRmShell::close);
+    }
+
+    void track(Host host, Session session) {
+        liveSessions.put(host.getHost(), session);
+        if (cancelled)
+            session.disconnect();
+    }
+
+    void untrack(Host host) {
+        liveSessions.remove(host.getHost());
+    }
+
+    void track(HostSessionManager.WinRmShell shell) {
+        liveShells.add(shell);
+        if (cancelled)
+            shell.close();
+    }
+
+    /** False if cancel() may have closed the shell, which must then be invalidated rather than released. */
+    boolean untrack(HostSessionManager.WinRmShell shell) {
+        liveShells.remove(shell);
+        return !cancelled;
+    }
+
+    /**
+     * Blocks until more than `seen` hosts have finished (or the timeout passes)
+     * and returns the names of the newly finished hosts, in completion order.
+     */
+    public synchronized List<String> awaitFinished(int seen, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (finishedHosts.size() <= seen && !isFinished()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                break;
+            wait(left);
+        }
+        return new ArrayList<>(finishedHosts.subList(Math.min(seen, finishedHosts.size()), finishedHosts.size()));
+    }
+
+    // -------------------- GETTERS --------------------
+    public String getId() {
+        return id;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public List<Host> getHosts() {
+        return hosts;
+    }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isFinished() {
+        return finishedHosts.size() == hosts.size();
+    }
+
+    public synchronized int getFinishedCount() {
+        return finishedHosts.size();
+    }
+
+    public State getState() {
+        if (isFinished())
+            return cancelled ? State.CANCELLED : State.DONE;
+        return cancelled ? State.CANCELLED : State.RUNNING;
+    }
+
+    public State getHostState(String host) {
+        return hostStates.get(host);
+    }
+
+    public Map<String, String> getResults(String host) {
+        return results.get(host);
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+}
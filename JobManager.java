@@ -0,0 +1,82 @@
+import models.Command;
+import models.Host;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs validate/execute jobs in the background on the HostScheduler. Jobs
+ * are addressed by id so any number of operators can submit, poll, stream
+ * and cancel runs without holding an HTTP thread for the whole fan-out.
+ */
+public class JobManager {
+
+    private static final long RETAIN_FINISHED_MS = Long.getLong("ros.jobs.retainMs", 60 * 60 * 1000L);
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final HostScheduler hostScheduler;
+    private final HostRunner hostRunner;
+
+    public JobManager(HostScheduler hostScheduler, HostRunner hostRunner) {
+        this.hostScheduler = hostScheduler;
+        this.hostRunner = hostRunner;
+    }
+
+    public Job submit(Job.Mode mode, List<Host> hosts, List<Command> commands) {
+        purgeFinished();
+        Job job = new Job(UUID.randomUUID().toString().replace("-", "").substring(0, 12), mode, hosts, commands);
+        jobs.put(job.getId(), job);
+
+        for (Host host : hosts) {
+            hostScheduler.run(host, () -> {
+                if (job.isCancelled()) {
+                    Map<String, String> skipped = new LinkedHashMap<>();
+                    for (Command cmd : commands)
+                        skipped.put(cmd.getDescription(), "Cancelled");
+                    job.hostFinished(host, skipped);
+                    return;
+                }
+
+                job.hostStarted(host);
+                Map<String, String> hostResults;
+                try {
+                    switch (mode) {
+                        case VALIDATE:
+                            hostResults = hostRunner.validate(host, commands, job);
+                            break;
+                        case RUN:
+                            hostResults = hostRunner.validateAndExecute(host, commands, job);
+                            break;
+                        default:
+                            hostResults = hostRunner.execute(host, commands, job);
+                    }
+                } catch (RuntimeException e) {
+                    hostResults = Collections.singletonMap("Error", String.valueOf(e.getMessage()));
+                }
+                job.hostFinished(host, hostResults);
+            });
+        }
+        return job;
+    }
+
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    public boolean cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null)
+            return false;
+        job.cancel();
+        return true;
+    }
+
+    public Collection<Job> list() {
+        return jobs.values();
+    }
+
+    private void purgeFinished() {
+        long cutoff = System.currentTimeMillis() - RETAIN_FINISHED_MS;
+        jobs.values().removeIf(job -> job.isFinished() && job.getFinishedAt() < cutoff);
+    }
+}
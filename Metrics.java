@@ -0,0 +1,296 @@
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics rendered in the Prometheus text format on /metrics.
+ * Recording only touches LongAdders in a concurrent map, so it is safe on
+ * every exec; gauges and cache stats are sampled when the endpoint is read.
+ */
+public final class Metrics {
+
+    // Upper bounds in seconds; +Inf is implicit
+    private static final double[] BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+    // Caps label combinations per metric so free-form commands cannot grow the map without bound
+    private static final int MAX_SERIES = Integer.getInteger("ros.metrics.maxSeries", 2000);
+    private static final int MAX_LABEL_LENGTH = 120;
+    private static final String OVERFLOW = "_other";
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++)
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1_000_000_000L);
+    }
+
+    private static final List<Family> families = new CopyOnWriteArrayList<>();
+    private static final Map<String, Supplier<CacheStats>> caches = new ConcurrentSkipListMap<>();
+
+    // -------------------- PIPELINE METRICS --------------------
+    public static final Histogram SSH_CONNECT = histogram("ros_ssh_connect_seconds",
+            "SSH connect, key exchange and authentication time", "host");
+    public static final Histogram SSH_CHANNEL_OPEN = histogram("ros_ssh_channel_open_seconds",
+            "Time to open an exec channel on a pooled session", "host");
+    public static final Histogram SSH_EXEC = histogram("ros_ssh_exec_seconds",
+            "Remote command time from channel open to channel close", "host", "command");
+    public static final Counter SSH_FAILURES = counter("ros_ssh_failures_total",
+            "SSH connects and channel opens that failed", "host", "stage");
+    public static final Histogram WINRM_EXEC = histogram("ros_winrm_exec_seconds",
+            "WinRM command time", "host", "command");
+    public static final Counter WINRM_FAILURES = counter("ros_winrm_failures_total",
+            "WinRM commands that threw", "host");
+    public static final Histogram CONNECT_QUEUE = histogram("ros_connect_queue_seconds",
+            "Time a new connection waited for a handshake slot and token", "subnet");
+    public static final Counter RETRIES = counter("ros_connect_retries_total",
+            "Connects retried after a transient failure", "host", "transport");
+    public static final Counter CIRCUIT_REJECTIONS = counter("ros_circuit_rejections_total",
+            "Connects failed fast because the host's circuit was open", "host");
+    public static final Histogram CACHE_LOAD = histogram("ros_cache_load_seconds",
+            "Time to load a missing or expiring cache entry; for a probe, from its claim to its answer", "cache");
+    public static final Counter CACHE_LOAD_FAILURES = counter("ros_cache_load_failures_total",
+            "Cache loads that failed", "cache");
+
+    static {
+        families.add(new CacheFamily());
+    }
+
+    private Metrics() {
+    }
+
+    // -------------------- REGISTRATION --------------------
+    public static Histogram histogram(String name, String help, String... labels) {
+        Histogram h = new Histogram(name, help, labels);
+        families.add(h);
+        return h;
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        Counter c = new Counter(name, help, labels);
+        families.add(c);
+        return c;
+    }
+
+    public static void gauge(String name, String help, Supplier<? extends Number> value) {
+        families.add(new Gauge(name, help, null, () -> Collections.singletonMap("", value.get())));
+    }
+
+    /** A gauge with one label, sampled as label value to number. */
+    public static void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        families.add(new Gauge(name, help, label, values));
+    }
+
+    public static void cache(String cache, Supplier<CacheStats> stats) {
+        caches.put(cache, stats);
+    }
+
+    // -------------------- RENDER --------------------
+    public static String render() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        for (Family f : families)
+            f.render(sb);
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String[] labelNames, List<String> labelValues,
+            String extraName, String extraValue, Object value) {
+        sb.append(name);
+        boolean any = false;
+        for (int i = 0; i < labelNames.length; i++) {
+            sb.append(any ? ',' : '{').append(labelNames[i]).append("=\"");
+            escapeLabel(sb, labelValues.get(i));
+            sb.append('"');
+            any = true;
+        }
+        if (extraName != null) {
+            sb.append(any ? ',' : '{').append(extraName).append("=\"").append(extraValue).append('"');
+            any = true;
+        }
+        if (any)
+            sb.append('}');
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void escapeLabel(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '"')
+                sb.append("\\\"");
+            else if (c == '\n')
+                sb.append("\\n");
+            else
+                sb.append(c);
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1_000_000_000.0;
+    }
+
+    // -------------------- FAMILIES --------------------
+    private abstract static class Family {
+        final String name;
+        final String help;
+
+        Family(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract void render(StringBuilder sb);
+    }
+
+    private abstract static class Labeled<S> extends Family {
+        final String[] labels;
+        final ConcurrentMap<List<String>, S> series = new ConcurrentHashMap<>();
+
+        Labeled(String name, String help, String[] labels) {
+            super(name, help);
+            this.labels = labels;
+        }
+
+        abstract S newSeries();
+
+        S series(String[] values) {
+            for (int i = 0; i < values.length; i++) {
+                String v = values[i] == null ? "" : values[i];
+                values[i] = v.length() > MAX_LABEL_LENGTH ? v.substring(0, MAX_LABEL_LENGTH) : v;
+            }
+            List<String> key = Arrays.asList(values);
+            S s = series.get(key);
+            if (s != null)
+                return s;
+            if (series.size() >= MAX_SERIES) {
+                String[] overflow = new String[labels.length];
+                Arrays.fill(overflow, OVERFLOW);
+                key = Arrays.asList(overflow);
+            }
+            return series.computeIfAbsent(key, k -> newSeries());
+        }
+    }
+
+    public static final class Histogram extends Labeled<Histogram.Series> {
+
+        Histogram(String name, String help, String[] labels) {
+            super(name, help, labels);
+        }
+
+        public void observe(long nanos, String... labelValues) {
+            Series s = series(labelValues.clone());
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i])
+                i++;
+            s.buckets[i].increment();
+            s.sumNanos.add(nanos);
+        }
+
+        /** Records the time since startNanos (from System.nanoTime). */
+        public void since(long startNanos, String... labelValues) {
+            observe(System.nanoTime() - startNanos, labelValues);
+        }
+
+        @Override
+        Series newSeries() {
+            return new Series();
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, name, "histogram", help);
+            for (Map.Entry<List<String>, Series> e : series.entrySet()) {
+                Series s = e.getValue();
+                long cumulative = 0;
+                for (int i = 0; i <= BUCKETS.length; i++) {
+                    cumulative += s.buckets[i].sum();
+                    sample(sb, name + "_bucket", labels, e.getKey(), "le",
+                            i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf", cumulative);
+                }
+                sample(sb, name + "_sum", labels, e.getKey(), null, null, seconds(s.sumNanos.sum()));
+                sample(sb, name + "_count", labels, e.getKey(), null, null, cumulative);
+            }
+        }
+
+        static final class Series {
+            final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+            final LongAdder sumNanos = new LongAdder();
+
+            Series() {
+                for (int i = 0; i < buckets.length; i++)
+                    buckets[i] = new LongAdder();
+            }
+        }
+    }
+
+    public static final class Counter extends Labeled<LongAdder> {
+
+        Counter(String name, String help, String[] labels) {
+            super(name, help, labels);
+        }
+
+        public void inc(String... labelValues) {
+            series(labelValues.clone()).increment();
+        }
+
+        @Override
+        LongAdder newSeries() {
+            return new LongAdder();
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, name, "counter", help);
+            for (Map.Entry<List<String>, LongAdder> e : series.entrySet())
+                sample(sb, name, labels, e.getKey(), null, null, e.getValue().sum());
+        }
+    }
+
+    private static final class Gauge extends Family {
+        private final String label;
+        private final Supplier<Map<String, ? extends Number>> values;
+
+        Gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+            super(name, help);
+            this.label = label;
+            this.values = values;
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            header(sb, name, "gauge", help);
+            String[] labels = label == null ? new String[0] : new String[] { label };
+            for (Map.Entry<String, ? extends Number> e : values.get().entrySet())
+                sample(sb, name, labels, Collections.singletonList(e.getKey()), null, null, e.getValue());
+        }
+    }
+
+    // Caffeine stats for every registered cache, one metric at a time so samples stay grouped
+    private static final class CacheFamily extends Family {
+        private static final String[] LABELS = { "cache" };
+
+        CacheFamily() {
+            super("ros_cache", "");
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            Map<String, CacheStats> stats = new LinkedHashMap<>();
+            caches.forEach((cache, s) -> stats.put(cache, s.get()));
+
+            header(sb, "ros_cache_hits_total", "counter", "Cache lookups that found an entry");
+            stats.forEach((cache, s) -> sample(sb, "ros_cache_hits_total", LABELS, List.of(cache), null, null, s.hitCount()));
+            header(sb, "ros_cache_misses_total", "counter", "Cache lookups that found nothing");
+            stats.forEach((cache, s) -> sample(sb, "ros_cache_misses_total", LABELS, List.of(cache), null, null, s.missCount()));
+            header(sb, "ros_cache_evictions_total", "counter", "Entries evicted for size or expiry");
+            stats.forEach((cache, s) -> sample(sb, "ros_cache_evictions_total", LABELS, List.of(cache), null, null, s.evictionCount()));
+        }
+    }
+}
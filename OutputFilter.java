@@ -0,0 +1,211 @@
+import models.Host;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drops login banners and known noise lines from command output, per OS
+ * type. A line is dropped when its trimmed text starts with a match of the
+ * banner pattern or contains a match of the noise pattern (both
+ * case-insensitive). Patterns come from ros.clean.{type}.banner and
+ * ros.clean.{type}.noise, where type is the host's type in lower case; an
+ * empty value disables that pattern.
+ *
+ * Both forms work in one pass over the input: clean() walks a String with
+ * matcher regions instead of splitting it, and wrap() filters bytes line by
+ * line as the channel delivers them, so nothing is held beyond one line.
+ */
+public class OutputFilter {
+
+    // { banner, noise } regexes
+    private static final Map<String, String[]> DEFAULTS = Map.of(
+            "linux", new String[] { "Last login:", "register this system" },
+            // PowerShell serialises progress records onto stderr over WinRM
+            "winrm", new String[] { "#< CLIXML|<Objs Version=", "" });
+
+    // Longer lines pass through unfiltered; a banner is never this long
+    private static final int MAX_LINE = 8 * 1024;
+
+    private static final Map<String, OutputFilter> BY_TYPE = new ConcurrentHashMap<>();
+    private static final OutputFilter NONE = new OutputFilter(null, null);
+
+    private final Pattern banner;
+    private final Pattern noise;
+
+    private OutputFilter(Pattern banner, Pattern noise) {
+        this.banner = banner;
+        this.noise = noise;
+    }
+
+    public static OutputFilter forHost(Host host) {
+        String type = host.getType() == null ? "" : host.getType().trim().toLowerCase();
+        return BY_TYPE.computeIfAbsent(type, OutputFilter::load);
+    }
+
+    private static OutputFilter load(String type) {
+        String[] defaults = DEFAULTS.getOrDefault(type, new String[] { "", "" });
+        Pattern banner = compile(System.getProperty("ros.clean." + type + ".banner", defaults[0]));
+        Pattern noise = compile(System.getProperty("ros.clean." + type + ".noise", defaults[1]));
+        return banner == null && noise == null ? NONE : new OutputFilter(banner, noise);
+    }
+
+    private static Pattern compile(String regex) {
+        return regex.isEmpty() ? null : Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    }
+
+    // -------------------- STRING --------------------
+    /** Kept lines, trimmed, blank ones dropped, joined by '\n' (the probe form). */
+    public String clean(String raw) {
+        StringBuilder sb = new StringBuilder(Math.min(raw.length(), 1024));
+        Matcher bannerMatcher = banner == null ? null : banner.matcher(raw);
+        Matcher noiseMatcher = noise == null ? null : noise.matcher(raw);
+        int length = raw.length();
+        int lineStart = 0;
+
+        while (lineStart < length) {
+            int lineEnd = raw.indexOf('\n', lineStart);
+            if (lineEnd < 0)
+                lineEnd = length;
+            int start = lineStart;
+            int end = lineEnd;
+            while (start < end && raw.charAt(start) <= ' ')
+                start++;
+            while (end > start && raw.charAt(end - 1) <= ' ')
+                end--;
+            if (start < end && !dropped(bannerMatcher, noiseMatcher, start, end)) {
+                if (sb.length() > 0)
+                    sb.append('\n');
+                sb.append(raw, start, end);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return sb.toString();
+    }
+
+    private static boolean dropped(Matcher bannerMatcher, Matcher noiseMatcher, int start, int end) {
+        return (bannerMatcher != null && bannerMatcher.region(start, end).lookingAt())
+                || (noiseMatcher != null && noiseMatcher.region(start, end).find());
+    }
+
+    // -------------------- STREAM --------------------
+    /**
+     * Passes every kept line to out byte for byte (blank lines and
+     * indentation included); only banner and noise lines are dropped.
+     * Closing the wrapper closes out.
+     */
+    public OutputStream wrap(OutputStream out) {
+        return this == NONE ? out : new LineFilterStream(out);
+    }
+
+    private class LineFilterStream extends OutputStream {
+        private final OutputStream out;
+        private final Latin1Line line = new Latin1Line();
+        private final Matcher bannerMatcher = banner == null ? null : banner.matcher(line);
+        private final Matcher noiseMatcher = noise == null ? null : noise.matcher(line);
+        private boolean passThrough; // rest of an over-long line
+
+        LineFilterStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                int newline = off;
+                while (newline < end && b[newline] != '\n')
+                    newline++;
+                boolean complete = newline < end;
+                int chunkEnd = complete ? newline + 1 : end;
+
+                if (passThrough) {
+                    out.write(b, off, chunkEnd - off);
+                    passThrough = !complete;
+                } else {
+                    line.append(b, off, chunkEnd - off);
+                    if (complete) {
+                        emit();
+                    } else if (line.length > MAX_LINE) {
+                        out.write(line.bytes, 0, line.length);
+                        line.length = 0;
+                        passThrough = true;
+                    }
+                }
+                off = chunkEnd;
+            }
+        }
+
+        private void emit() throws IOException {
+            int start = 0;
+            int end = line.length;
+            while (start < end && (line.bytes[start] & 0xff) <= ' ')
+                start++;
+            while (end > start && (line.bytes[end - 1] & 0xff) <= ' ')
+                end--;
+            if (start == end || !dropped(bannerMatcher == null ? null : bannerMatcher.reset(),
+                    noiseMatcher == null ? null : noiseMatcher.reset(), start, end))
+                out.write(line.bytes, 0, line.length);
+            line.length = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (line.length > 0)
+                emit();
+            out.close();
+        }
+    }
+
+    /**
+     * The current line's bytes seen as ISO-8859-1 chars. Patterns are ASCII,
+     * and UTF-8 never puts ASCII bytes inside a multi-byte character, so
+     * matching needs no decoding.
+     */
+    private static final class Latin1Line implements CharSequence {
+        byte[] bytes = new byte[256];
+        int length;
+
+        void append(byte[] b, int off, int len) {
+            if (length + len > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(length + len, 2 * bytes.length));
+            System.arraycopy(b, off, bytes, length, len);
+            length += len;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
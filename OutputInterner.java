@@ -0,0 +1,36 @@
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Canonical instances of command outputs, keyed by the SHA-256 of their full
+ * content (CommandOutput.digest). Hosts that print the same thing share one
+ * String, so results held for a run grow with the number of distinct outputs
+ * rather than with hosts, and grouping them for the results page mostly
+ * compares references. Large outputs merge too: their previews differ only
+ * in the download path, and the first host's preview stands for all.
+ * Values are weak: an output is dropped once no result refers to it.
+ */
+public class OutputInterner {
+
+    // Below this many bytes, a lookup costs more than the copy it would save
+    private static final int MIN_LENGTH = Integer.getInteger("ros.output.internMinChars", 64);
+
+    private static final Cache<String, String> OUTPUTS = Caffeine.newBuilder()
+            .weakValues()
+            .build();
+
+    private OutputInterner() {
+    }
+
+    /** The text for the results page (CommandOutput.toString), shared with identical outputs. */
+    public static String intern(CommandOutput output) {
+        String text = output.toString();
+        if (output.size() < MIN_LENGTH)
+            return text;
+        return OUTPUTS.get(output.digest(), k -> text);
+    }
+
+    public static long size() {
+        return OUTPUTS.estimatedSize();
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+/**
+ * The probes of one kind a batch validation owns: fresh claims, whose answers
+ * also complete the futures handed out to the statuses, and refreshes of
+ * cached answers close to expiry, which are served as cached meanwhile. Each
+ * claimed probe adds a line to the batch's script and is answered by the
+ * index passed to that line.
+ */
+public class ProbeBatch<T> {
+    private final CacheManager.Probes<T> cache;
+    private final List<CacheManager.Probes<T>.Claim> claims = new ArrayList<>();
+    private final BitSet answered = new BitSet();
+
+    public ProbeBatch(CacheManager.Probes<T> cache) {
+        this.cache = cache;
+    }
+
+    public CompletableFuture<T> claim(String key, StringBuilder script, IntFunction<String> line) {
+        CacheManager.Probes<T>.Claim claim = cache.claim(key);
+        if (claim.isProbe()) {
+            script.append(line.apply(claims.size()));
+            claims.add(claim);
+        }
+        return claim.answer();
+    }
+
+    public void answer(int idx, T value) {
+        if (idx < 0 || idx >= claims.size() || answered.get(idx))
+            return;
+        claims.get(idx).put(value);
+        answered.set(idx);
+    }
+
+    public void failUnanswered(Exception error) {
+        for (int i = answered.nextClearBit(0); i < claims.size(); i = answered.nextClearBit(i + 1)) {
+            claims.get(i).fail(error);
+            answered.set(i);
+        }
+    }
+}
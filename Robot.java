@@ -1,47 +1,83 @@
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import com.jcraft.jsch.Session;
 import com.sun.net.httpserver.HttpExchange;
 import models.Command;
 import models.Host;
+import models.Inventory;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 
 import java.util.*;
 import java.util.concurrent.*;
 
 public class Robot {
 
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    private static final int HTTP_THREADS = Integer.getInteger("ros.http.threads", 16);
+
+    // HTTP handling and host fan-out are kept apart so the UI stays responsive under load
+    private static final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(HTTP_THREADS);
+    // Requests that hold their thread for a whole fan-out, job stream or download; kept off the fixed
+    // pool so open viewers never block cancels, /metrics or new submissions
+    private static final ThreadPoolExecutor longRequests = (ThreadPoolExecutor) Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "http-long");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final HostScheduler hostScheduler = new HostScheduler();
     private static final HostSessionManager hostSessionManager = new HostSessionManager();
     private static final CacheManager cacheManager = new CacheManager();
+    private static final InventoryCache inventoryCache = new InventoryCache();
     private static final SSHManager sshManager = new SSHManager(hostSessionManager, cacheManager);
-    private static final WinRMManager winrmManager = new WinRMManager(hostSessionManager);
-
-    // Store path of last uploaded file
-    private static String lastUploadedFilePath = null;
+    private static final WinRMManager winrmManager = new WinRMManager(hostSessionManager, cacheManager);
+    private static final HostRunner hostRunner = new HostRunner(hostSessionManager, sshManager, winrmManager);
+    private static final JobManager jobManager = new JobManager(hostScheduler, hostRunner);
 
     public static void main(String[] args) throws Exception {
         HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", 8080), 0);
 
         server.createContext("/", Robot::handleRoot);
-        server.createContext("/validate", Robot::handleValidate);
-        server.createContext("/execute", exchange -> {
+        server.createContext("/validate", longRunning(Robot::handleValidate));
+        server.createContext("/execute", longRunning(Robot::handleExecute));
+        server.createContext("/jobs", exchange -> {
             try {
-                handleExecute(exchange);
+                handleJobs(exchange);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         });
+        server.createContext("/output", longRunning(Robot::handleOutput));
         server.createContext("/static", Robot::handleStatic);
+        server.createContext("/metrics", Robot::handleMetrics);
+        registerMetrics();
 
         server.setExecutor(executor);
         server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(hostSessionManager::closeAll));
         System.out.println("Server running at http://localhost:8080");
     }
 
+    interface Handler {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    // Hands the exchange to longRequests and frees the HTTP worker at once
+    private static HttpHandler longRunning(Handler handler) {
+        return exchange -> longRequests.execute(() -> runLong(handler, exchange));
+    }
+
+    private static void runLong(Handler handler, HttpExchange exchange) {
+        try {
+            handler.handle(exchange);
+        } catch (Exception e) {
+            e.printStackTrace();
+            exchange.close();
+        }
+    }
+
     // ---------------- ROOT ----------------
     private static void handleRoot(HttpExchange exchange) throws IOException {
         sendHtml(exchange, Helper.loadHtml("upload.html"));
@@ -58,14 +94,16 @@ public class Robot {
         }
 
         File uploadedFile = Helper.FileUploadHelper.saveUploadedFile(exchange, "commands.xlsx");
-        lastUploadedFilePath = uploadedFile.getAbsolutePath();
 
+        String uploadId;
         List<Host> hosts;
         List<Command> commands;
 
         try {
-            hosts = ExcelParser.parseHosts(lastUploadedFilePath);
-            commands = ExcelParser.parseCommands(lastUploadedFilePath);
+            uploadId = inventoryCache.register(uploadedFile.getAbsolutePath());
+            Inventory inventory = inventoryCache.get(uploadId);
+            hosts = inventory.getHosts();
+            commands = inventory.getCommands();
         } catch (Exception e) {
             sendHtml(exchange, "<p class='text-danger'>Excel parsing failed: " + e.getMessage() + "</p>");
             return;
@@ -76,66 +114,20 @@ public class Robot {
         List<CompletableFuture<Void>> futures = new ArrayList<>();
 
         for (Host host : hosts) {
-            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                Map<String, String> cmdStatus = new LinkedHashMap<>();
-                boolean allValid = true;
-                Session session = null;
-
-                try {
-                    if (host.isLinux()) {
-                        session = hostSessionManager.createNewSSHSession(host);
-
-                        for (Command cmd : commands) {
-                            String status;
-                            try {
-                                status = sshManager.execCommand(host, "command -v " + cmd.getCommand() + " 2>/dev/null",
-                                        session);
-                                if (status.isEmpty()) {
-                                    cmdStatus.put(cmd.getDescription(),
-                                            "<span class='text-danger'>Invalid command</span>");
-                                    allValid = false;
-                                } else {
-                                    // Option/path validation logic
-                                    status = sshManager
-                                            .validateCommands(host, Collections.singletonList(cmd.getCommand()))
-                                            .get(cmd.getCommand());
-                                    if (!status.contains("Valid"))
-                                        allValid = false;
-                                    cmdStatus.put(cmd.getDescription(), status);
-                                }
-                            } catch (Exception e) {
-                                cmdStatus.put(cmd.getDescription(),
-                                        "<span class='text-danger'>Error: " + e.getMessage() + "</span>");
-                                allValid = false;
-                            }
-                        }
-                    } else if (host.isWindows()) {
-                        for (Command cmd : commands)
-                            cmdStatus.put(cmd.getDescription(),
-                                    "<span class='text-warning'>Windows validation not implemented</span>");
-                    }
-
-                    validationResults.put(host.getHost(), cmdStatus);
-                    if (allValid)
-                        validHosts.add(host);
-
-                } catch (Exception e) {
-                    for (Command cmd : commands)
-                        cmdStatus.put(cmd.getDescription(), "<span class='text-danger'>Host connection failed</span>");
-                    validationResults.put(host.getHost(), cmdStatus);
-                } finally {
-                    if (session != null && session.isConnected())
-                        session.disconnect();
-                }
-            }, executor);
+            CompletableFuture<Void> future = hostScheduler.run(host, () -> {
+                Map<String, String> cmdStatus = hostRunner.validate(host, commands, null);
+                validationResults.put(host.getHost(), cmdStatus);
+                if (HostRunner.isValid(host, cmdStatus))
+                    validHosts.add(host);
+            });
 
             futures.add(future);
         }
 
         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
         // Build HTML page with checkboxes for valid hosts
-        String html = Helper.HtmlBuilder.buildValidationPageVertical(hosts, commands, validationResults, validHosts);
-        sendHtml(exchange, html);
+        streamHtml(exchange, out -> Helper.HtmlBuilder.writeValidationPageVertical(out, uploadId, hosts, commands,
+                validationResults, validHosts));
         } catch (Exception e) {
         e.printStackTrace(); // log server-side
         sendHtml(exchange, "<p class='text-danger'>Internal server error: " + e.getMessage() + "</p>");
@@ -148,19 +140,21 @@ public class Robot {
             return;
         }
 
-        if (lastUploadedFilePath == null) {
+        Map<String, List<String>> form = Helper.parseFormMulti(exchange);
+        Inventory inventory = inventoryCache.get(Helper.firstValue(form, "upload"));
+        if (inventory == null) {
             sendHtml(exchange, "<p class='text-danger'>No uploaded file found</p>");
             return;
         }
 
-        List<String> selectedHosts = Helper.parseSelectedHosts(exchange);
+        List<String> selectedHosts = form.getOrDefault("host", Collections.emptyList());
         if (selectedHosts.isEmpty()) {
             sendHtml(exchange, "<p class='text-danger'>No host selected</p>");
             return;
         }
 
-        List<Host> hosts = ExcelParser.parseHosts(lastUploadedFilePath);
-        List<Command> commands = ExcelParser.parseCommands(lastUploadedFilePath);
+        List<Host> hosts = inventory.getHosts();
+        List<Command> commands = inventory.getCommands();
 
         Map<String, Map<String, String>> results = new ConcurrentHashMap<>();
         List<CompletableFuture<Void>> futures = new ArrayList<>();
@@ -169,44 +163,8 @@ public class Robot {
             if (!selectedHosts.contains(host.getHost()))
                 continue;
 
-            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                Map<String, String> execResults = new LinkedHashMap<>(); // Create new map for each host
-
-                try {
-                    Session session = null;
-                    if (host.isLinux()) {
-                        session = hostSessionManager.createNewSSHSession(host);
-                    }
-
-                    for (Command cmd : commands) {
-                        try {
-                            String output;
-                            if (host.isLinux()) {
-                                output = sshManager.execCommand(host, cmd.getCommand(), session);
-                            } else if (host.isWindows()) {
-                                output = winrmManager.execCommand(host, cmd.getCommand());
-                            } else {
-                                output = "Unknown host type";
-                            }
-                            execResults.put(cmd.getDescription() + " : " + cmd.getCommand(), output);
-                        } catch (Exception ex) {
-                            execResults.put(cmd.getDescription() + " : " + cmd.getCommand(), "Error: " + ex.getMessage());
-                        }
-                    }
-
-                    // Close session after all commands for this host
-                    if (session != null && session.isConnected()) {
-                        session.disconnect();
-                    }
-
-                } catch (Exception e) {
-                    for (Command cmd : commands) {
-                        execResults.put(cmd.getDescription(), "Error: " + e.getMessage());
-                    }
-                }
-
-                results.put(host.getHost(), execResults); // Put the complete results for this host
-            }, executor);
+            CompletableFuture<Void> future = hostScheduler.run(host,
+                    () -> results.put(host.getHost(), hostRunner.execute(host, commands, null)));
 
             futures.add(future);
         }
@@ -214,9 +172,236 @@ public class Robot {
         // Wait for all hosts to finish
         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
 
-        // Build results HTML and send directly (no file writing/redirect)
-        String resultsHtml = Helper.HtmlBuilder.buildExecutionPage(results);
-        sendHtml(exchange, resultsHtml);
+        // Grouped by identical output unless the form asked for one card per host
+        if ("hosts".equals(Helper.firstValue(form, "view")))
+            streamHtml(exchange, out -> Helper.HtmlBuilder.writeExecutionPage(out, results));
+        else
+            streamHtml(exchange, out -> Helper.HtmlBuilder.writeGroupedExecutionPage(out, results));
+    }
+
+    // ---------------- JOBS ----------------
+    // POST /jobs                 submit (multipart file or "upload" id, "mode", optional "host" list);
+    //                            mode is "validate", "execute" (default) or "run": validate then execute per host
+    // GET  /jobs                 list jobs
+    // GET  /jobs/{id}            state, per-host progress and results
+    // GET  /jobs/{id}/events     Server-Sent Events, one "host" event per finished host
+    // GET  /jobs/{id}/grouped    HTML fragment, finished hosts grouped by identical output per command
+    // POST /jobs/{id}/cancel     cancel (DELETE /jobs/{id} works too)
+    private static void handleJobs(HttpExchange exchange) throws Exception {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/jobs/?|/$", "").split("/");
+        String id = path[0];
+
+        if (id.isEmpty()) {
+            if ("POST".equalsIgnoreCase(method))
+                submitJob(exchange);
+            else
+                sendJson(exchange, 200, listJobs());
+            return;
+        }
+
+        Job job = jobManager.get(id);
+        if (job == null) {
+            sendJson(exchange, 404, Collections.singletonMap("error", "Unknown job " + id));
+            return;
+        }
+
+        String action = path.length > 1 ? path[1] : "";
+        if ("DELETE".equalsIgnoreCase(method) || ("POST".equalsIgnoreCase(method) && "cancel".equals(action))) {
+            job.cancel();
+            sendJson(exchange, 200, jobSummary(job));
+        } else if ("events".equals(action)) {
+            longRequests.execute(() -> runLong(ex -> streamJob(ex, job), exchange));
+        } else if ("grouped".equals(action)) {
+            Map<String, Map<String, String>> results = new LinkedHashMap<>();
+            for (Host host : job.getHosts()) {
+                Map<String, String> hostResults = job.getResults(host.getHost());
+                if (hostResults != null)
+                    results.put(host.getHost(), hostResults);
+            }
+            streamHtml(exchange, out -> Helper.HtmlBuilder.writeGroupedResults(out, results));
+        } else {
+            Map<String, Object> status = jobSummary(job);
+            List<Map<String, Object>> hosts = new ArrayList<>();
+            for (Host host : job.getHosts()) {
+                Map<String, Object> h = new LinkedHashMap<>();
+                h.put("host", host.getHost());
+                h.put("state", String.valueOf(job.getHostState(host.getHost())));
+                h.put("results", job.getResults(host.getHost()));
+                hosts.add(h);
+            }
+            status.put("hosts", hosts);
+            sendJson(exchange, 200, status);
+        }
+    }
+
+    private static void submitJob(HttpExchange exchange) throws Exception {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        Map<String, List<String>> form = new HashMap<>();
+        String uploadId;
+
+        try {
+            if (contentType != null && contentType.contains("multipart/form-data")) {
+                // A form without a file part refers to an earlier upload by id
+                File uploadedFile = Helper.FileUploadHelper.saveUploadedFile(exchange, "commands.xlsx", form);
+                uploadId = uploadedFile != null ? inventoryCache.register(uploadedFile.getAbsolutePath())
+                        : Helper.firstValue(form, "upload");
+            } else {
+                form = Helper.parseFormMulti(exchange);
+                uploadId = Helper.firstValue(form, "upload");
+            }
+        } catch (Exception e) {
+            sendJson(exchange, 400, Collections.singletonMap("error", "Upload failed: " + e.getMessage()));
+            return;
+        }
+
+        Inventory inventory;
+        try {
+            inventory = inventoryCache.get(uploadId);
+        } catch (Exception e) {
+            sendJson(exchange, 400, Collections.singletonMap("error", "Excel parsing failed: " + e.getMessage()));
+            return;
+        }
+        if (inventory == null) {
+            sendJson(exchange, 400, Collections.singletonMap("error", "No uploaded file found"));
+            return;
+        }
+
+        String modeName = Helper.firstValue(form, "mode");
+        Job.Mode mode = "validate".equalsIgnoreCase(modeName) ? Job.Mode.VALIDATE
+                : "run".equalsIgnoreCase(modeName) ? Job.Mode.RUN
+                : Job.Mode.EXECUTE;
+        List<String> selected = form.get("host");
+        List<Host> hosts = new ArrayList<>();
+        for (Host host : inventory.getHosts()) {
+            if (selected == null || selected.contains(host.getHost()))
+                hosts.add(host);
+        }
+
+        Job job = jobManager.submit(mode, hosts, inventory.getCommands());
+        Map<String, Object> summary = jobSummary(job);
+        summary.put("upload", uploadId);
+        sendJson(exchange, 202, summary);
+    }
+
+    private static void streamJob(HttpExchange exchange, Job job) throws Exception {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0); // chunked
+        try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+            out.write(Helper.sseEvent("start", String.valueOf(job.getHosts().size())));
+            out.flush();
+
+            int seen = 0;
+            while (true) {
+                List<String> finished = job.awaitFinished(seen, 15000);
+                for (String host : finished) {
+                    Map<String, String> hostResults = job.getResults(host);
+                    out.write(Helper.sseEvent("host", job.getMode() == Job.Mode.VALIDATE
+                            ? Helper.HtmlBuilder.buildHostStatusCard(host, hostResults)
+                            : Helper.HtmlBuilder.buildHostResultCard(host, hostResults)));
+                }
+                seen += finished.size();
+                if (finished.isEmpty())
+                    out.write(": keep-alive\n\n");
+                out.flush();
+                if (job.isFinished() && seen >= job.getFinishedCount())
+                    break;
+            }
+            out.write(Helper.sseEvent("done", String.valueOf(job.getState())));
+        }
+    }
+
+    private static List<Map<String, Object>> listJobs() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Job job : jobManager.list())
+            list.add(jobSummary(job));
+        return list;
+    }
+
+    private static Map<String, Object> jobSummary(Job job) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("id", job.getId());
+        summary.put("mode", job.getMode().name().toLowerCase());
+        summary.put("state", job.getState().name());
+        summary.put("total", job.getHosts().size());
+        summary.put("finished", job.getFinishedCount());
+        return summary;
+    }
+
+    // ---------------- METRICS ----------------
+    private static void registerMetrics() {
+        Metrics.gauge("ros_ssh_sessions_leased", "SSH sessions currently leased", "pool",
+                hostSessionManager::getLeasedSessions);
+        Metrics.gauge("ros_ssh_sessions_idle", "Connected SSH sessions parked for reuse", "pool",
+                hostSessionManager::getIdleSessions);
+        Metrics.gauge("ros_ssh_lease_waiters", "Callers waiting for an SSH session", "pool",
+                hostSessionManager::getWaitingLeases);
+        Metrics.gauge("ros_ssh_sessions_per_host_max", "SSH session limit per host",
+                hostSessionManager::getMaxSessionsPerHost);
+        ConnectLimiter connectLimiter = hostSessionManager.getConnectLimiter();
+        Metrics.gauge("ros_connect_in_flight", "Handshakes in flight", connectLimiter::getInFlight);
+        Metrics.gauge("ros_connect_waiting", "New connections queued for a handshake slot or token",
+                connectLimiter::getWaiting);
+        Metrics.gauge("ros_connect_in_flight_subnet", "Handshakes in flight per subnet", "subnet",
+                connectLimiter::getInFlightBySubnet);
+        Metrics.gauge("ros_circuit_open_seconds", "Hosts failing fast, by seconds left before a trial connect",
+                "host", hostSessionManager.getHealth()::getOpenCircuits);
+        Metrics.gauge("ros_winrm_shells_leased", "WinRM shells currently leased", "pool",
+                hostSessionManager::getLeasedWinRMShells);
+        Metrics.gauge("ros_winrm_shells_idle", "Open WinRM shells parked for reuse", "pool",
+                hostSessionManager::getIdleWinRMShells);
+        Metrics.gauge("ros_scheduler_running", "Host tasks running", hostScheduler::getRunning);
+        Metrics.gauge("ros_scheduler_queued", "Host tasks waiting for a slot", hostScheduler::getQueued);
+        Metrics.gauge("ros_scheduler_max_concurrent", "Host task limit", hostScheduler::getMaxConcurrent);
+        Metrics.gauge("ros_http_active_threads", "HTTP worker threads busy", executor::getActiveCount);
+        Metrics.gauge("ros_http_queued_requests", "HTTP requests waiting for a worker", () -> executor.getQueue().size());
+        Metrics.gauge("ros_http_long_requests", "Fan-outs, job streams and downloads in progress",
+                longRequests::getActiveCount);
+        Metrics.gauge("ros_jobs_running", "Background jobs not yet finished",
+                () -> jobManager.list().stream().filter(job -> !job.isFinished()).count());
+        Metrics.cache("command", () -> cacheManager.commands().cacheStats());
+        Metrics.cache("option", () -> cacheManager.options().cacheStats());
+        Metrics.cache("path", () -> cacheManager.paths().cacheStats());
+        Metrics.cache("inventory", inventoryCache::cacheStats);
+    }
+
+    private static void handleMetrics(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+        byte[] bytes = Metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    // ---------------- FULL OUTPUT ----------------
+    // GET /output/{id}/stdout|stderr   full text of a command whose output was spilled to disk
+    private static void handleOutput(HttpExchange exchange) throws IOException {
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/output/?|/$", "").split("/");
+        CommandOutput output = CommandOutput.find(path[0]);
+        CommandOutput.Capture stream = output == null || path.length < 2 ? null
+                : "stdout".equals(path[1]) ? output.getStdout()
+                : "stderr".equals(path[1]) ? output.getStderr() : null;
+        if (stream == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        InputStream in;
+        try {
+            in = stream.open();
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.getResponseHeaders().set("Content-Disposition",
+                "attachment; filename=\"" + path[0] + "." + path[1] + ".txt\"");
+        exchange.sendResponseHeaders(200, 0); // chunked: the command may still be writing
+        try (InputStream source = in; OutputStream os = exchange.getResponseBody()) {
+            source.transferTo(os);
+        }
     }
 
     // ---------------- STATIC FILES ----------------
@@ -245,7 +430,48 @@ public class Robot {
         }
     }
 
+    // ---------------- JSON RESPONSE ----------------
+    private static void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        byte[] bytes = Helper.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
     // ---------------- HTML RESPONSE ----------------
+    interface HtmlWriter {
+        void write(Writer out) throws IOException;
+    }
+
+    // Large pages: rendered straight into the response with chunked transfer, never held whole
+    private static void streamHtml(HttpExchange exchange, HtmlWriter page) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0); // chunked
+        // The status is out: a failure from here on is logged and ends the page early, never rethrown
+        // into a handler that would try to send a second response
+        Writer out = new Helper.HtmlBuilder.PageWriter(exchange.getResponseBody());
+        try {
+            page.write(out);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            try {
+                out.write("<p class='text-danger'>Page rendering failed: "
+                        + Helper.HtmlBuilder.escapeHtml(e.getMessage()) + "</p>");
+            } catch (IOException ignored) {
+                // client is gone
+            }
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // client is gone
+            }
+            exchange.close();
+        }
+    }
+
     private static void sendHtml(HttpExchange exchange, String html) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
         byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
@@ -1,152 +1,438 @@
 import com.jcraft.jsch.*;
 import models.Host;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class SSHManager {
 
+    private static final int CALLBACK_THREADS = Integer.getInteger("ros.ssh.callbackThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    // Kernel name, release and arch: a change means cached probe results for the host are stale
+    private static final String FINGERPRINT_COMMAND = "uname -srm 2>/dev/null";
+
     private final HostSessionManager hostSessionManager;
     private final CacheManager cacheManager;
+    private final Executor callbackExecutor;
 
     public SSHManager(HostSessionManager hostSessionManager, CacheManager cacheManager) {
+        this(hostSessionManager, cacheManager, Executors.newFixedThreadPool(CALLBACK_THREADS, r -> {
+            Thread t = new Thread(r, "ssh-callback");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    public SSHManager(HostSessionManager hostSessionManager, CacheManager cacheManager, Executor callbackExecutor) {
         this.hostSessionManager = hostSessionManager;
         this.cacheManager = cacheManager;
+        this.callbackExecutor = callbackExecutor;
     }
 
     // -------------------- EXECUTE SINGLE COMMAND --------------------
     public String execCommand(Host host, String command, Session session) throws Exception {
+        try {
+            return execCommandAsync(host, command, session).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Starts the command on a new exec channel and completes once the remote
+     * side has closed the channel. A channel closed without an exit status
+     * fails with an IOException rather than passing off partial output as
+     * the result: a disconnect if the session was dropped (or the job
+     * cancelled), a command failure if the server closed the channel on a
+     * live session, which is how a command killed by a signal ends. Completion is driven by the
+     * session's own reader thread closing the output streams, so no thread
+     * waits on the channel while the command runs; follow-up work runs on the
+     * small callback executor. When ros.health.execTimeoutMs is set, a
+     * command still running after it is disconnected and fails with a
+     * TimeoutException.
+     */
+    public CompletableFuture<String> execCommandAsync(Host host, String command, Session session) {
+        return execCommandAsync(host, command, null, session);
+    }
+
+    /** Same as execCommandAsync, feeding stdin to the remote command before sending EOF. */
+    public CompletableFuture<String> execCommandAsync(Host host, String command, byte[] stdin, Session session) {
+        return execCaptureAsync(host, command, stdin, session).thenApply(CommandOutput::toString);
+    }
+
+    /**
+     * Same as execCommandAsync but keeps stdout and stderr apart, with large
+     * output spilled to disk instead of held on the heap (see CommandOutput).
+     */
+    public CompletableFuture<CommandOutput> execCaptureAsync(Host host, String command, byte[] stdin,
+            Session session) {
         if (session == null || !session.isConnected())
-            throw new IllegalStateException("SSH session not connected for host: " + host.getHost());
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("SSH session not connected for host: " + host.getHost()));
 
+        CommandOutput capture = new CommandOutput();
         ChannelExec channel = null;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        FlightEvents.SshExec event = new FlightEvents.SshExec();
+        event.begin();
+        long start = System.nanoTime();
 
         try {
             channel = (ChannelExec) session.openChannel("exec");
             channel.setCommand(command);
-            channel.setInputStream(null);
-            channel.setErrStream(outputStream);
-            channel.setOutputStream(outputStream);
+            channel.setInputStream(stdin == null ? null : new ByteArrayInputStream(stdin));
+            OutputFilter filter = OutputFilter.forHost(host);
+            channel.setErrStream(filter.wrap(capture.getStderr()));
+            channel.setOutputStream(filter.wrap(capture.getStdout())); // closed by JSch on remote EOF, stderr on close
             channel.connect();
+        } catch (JSchException e) {
+            if (channel != null)
+                channel.disconnect();
+            Metrics.SSH_FAILURES.inc(host.getHost(), "channel");
+            commit(event, host, command, stdin, 0, false);
+            return CompletableFuture.failedFuture(e);
+        }
+        Metrics.SSH_CHANNEL_OPEN.since(start, host.getHost());
 
-            while (!channel.isClosed())
-                Thread.sleep(50);
+        final ChannelExec openChannel = channel;
+        long timeoutMs = hostSessionManager.getHealth().execTimeoutMs();
+        CompletableFuture<CommandOutput> done = capture.done.copy();
+        if (timeoutMs > 0)
+            done.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        return done.handleAsync((output, error) -> {
+            int exitStatus = openChannel.getExitStatus();
+            boolean closedByServer = openChannel.isClosed() && session.isConnected();
+            openChannel.disconnect(); // also closes the captures
+            if (error != null) {
+                Metrics.SSH_FAILURES.inc(host.getHost(), "timeout");
+                commit(event, host, command, stdin, capture.size(), false);
+                throw new CompletionException(
+                        new TimeoutException("No end of output after " + timeoutMs + " ms: " + command));
+            }
+            if (exitStatus == -1 && closedByServer) {
+                // Sent exit-signal instead of exit-status; the command ran and ended, so no transport failure
+                Metrics.SSH_EXEC.since(start, host.getHost(), command);
+                commit(event, host, command, stdin, capture.size(), false);
+                throw new CompletionException(
+                        new IOException("Command terminated by a signal: " + command));
+            }
+            if (exitStatus == -1) {
+                // Closed without an exit status: the session was dropped, output may be cut off
+                Metrics.SSH_FAILURES.inc(host.getHost(), "disconnect");
+                commit(event, host, command, stdin, capture.size(), false);
+                throw new CompletionException(
+                        new IOException("Connection closed before the command finished: " + command));
+            }
+            long nanos = System.nanoTime() - start;
+            Metrics.SSH_EXEC.observe(nanos, host.getHost(), command);
+            commit(event, host, command, stdin, output.size(), true);
+            return output;
+        }, callbackExecutor);
+    }
 
-            return outputStream.toString("UTF-8").trim();
-        } finally {
-            if (channel != null && channel.isConnected())
-                channel.disconnect();
+    private static void commit(FlightEvents.SshExec event, Host host, String command, byte[] stdin,
+            long outputBytes, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.host = host.getHost();
+            event.command = command;
+            event.stdinBytes = stdin == null ? 0 : stdin.length;
+            event.outputBytes = outputBytes;
+            event.success = success;
+            event.commit();
         }
     }
 
+    // -------------------- EXECUTE MANY COMMANDS --------------------
+    /**
+     * Runs the commands on concurrent exec channels over one session with at
+     * most maxChannels in flight (keep it below the server's MaxSessions,
+     * 10 by default on OpenSSH). Futures are returned in the order given and
+     * identical outputs share one String (OutputInterner); this call blocks
+     * only while waiting for a free channel slot.
+     */
+    public List<CompletableFuture<String>> execCommandsAsync(Host host, List<String> commands, Session session,
+            int maxChannels) throws InterruptedException {
+        Semaphore slots = new Semaphore(Math.max(1, maxChannels));
+        List<CompletableFuture<String>> futures = new ArrayList<>(commands.size());
+
+        for (String command : commands) {
+            slots.acquire();
+            CompletableFuture<String> future = execCaptureAsync(host, command, null, session)
+                    .thenApply(OutputInterner::intern);
+            future.whenComplete((output, error) -> slots.release());
+            futures.add(future);
+        }
+        return futures;
+    }
+
     // -------------------- VALIDATE COMMANDS --------------------
     public Map<String, String> validateCommands(Host host, List<String> commands) {
-        System.out.println("handleValidate called");
+        Session session = null;
+        try {
+            session = hostSessionManager.leaseSSHSession(host);
+            return validateCommands(host, commands, session);
+        } catch (Exception e) {
+            Map<String, String> results = new LinkedHashMap<>();
+            for (String cmd : commands)
+                results.put(cmd, "<span class='text-danger'>Host connection failed</span>");
+            return results;
+        } finally {
+            hostSessionManager.releaseSSHSession(host, session);
+        }
+    }
+
+    public Map<String, String> validateCommands(Host host, List<String> commands, Session session) {
         Map<String, String> results = new LinkedHashMap<>();
-        Session tmpSession = null;
 
-        try {
-            tmpSession = hostSessionManager.createNewSSHSession(host);
-            final Session session = tmpSession; // effectively final copy
+        if (session == null || !session.isConnected()) {
+            for (String cmd : commands)
+                results.put(cmd, "<span class='text-danger'>SSH session not connected</span>");
+            return results;
+        }
 
-            if (session == null || !session.isConnected()) {
-                for (String cmd : commands)
-                    results.put(cmd, "<span class='text-danger'>SSH session not connected</span>");
-                return results;
-            }
+        String scope = CacheManager.scope(host);
+        checkFingerprint(host, scope, session);
 
-            for (String cmd : commands) {
-                try {
-                    String[] parts = cmd.split("\\s+"); // also fixed regex
-                    String baseCmd = parts[0];
-
-                    // ---------- check if command exists ----------
-                    String cmdPath = cacheManager.getOrLoadCommand(baseCmd, () -> {
-                        try {
-                            return cleanOutput(execCommand(host, "command -v " + baseCmd + " 2>/dev/null", session));
-                        } catch (Exception e) {
-                            return "";
-                        }
-                    });
-
-                    if (cmdPath.isEmpty()) {
-                        results.put(cmd, "<span class='text-danger'>Invalid command</span>");
-                        continue;
-                    }
+        for (String cmd : commands) {
+            try {
+                String[] parts = cmd.split("\\s+"); // also fixed regex
+                String baseCmd = parts[0];
+
+                // ---------- check if command exists ----------
+                // Probe failures surface as "Error: ..." instead of being cached as a missing command
+                String cmdPath = cacheManager.getOrLoadCommand(CacheManager.key(scope, baseCmd),
+                        () -> cleanOutput(host, execCommand(host, "command -v " + baseCmd + " 2>/dev/null", session)));
 
-                    boolean optionValid = true;
-                    boolean filesExist = true;
-
-                    // ---------- validate options ----------
-                    for (String part : parts) {
-                        if (part.startsWith("-")) {
-                            String optionKey = baseCmd + "|" + part;
-                            optionValid = cacheManager.getOrLoadOption(optionKey, () -> {
-                                try {
-                                    String testOutput = cleanOutput(
-                                            execCommand(host, baseCmd + " " + part + " --help 2>&1", session));
-                                    return !(testOutput.contains("Unrecognized option") ||
-                                            testOutput.contains("invalid option"));
-                                } catch (Exception e) {
-                                    return false;
-                                }
-                            });
-                            if (!optionValid)
-                                break;
-                        }
+                if (cmdPath.isEmpty()) {
+                    results.put(cmd, "<span class='text-danger'>Invalid command</span>");
+                    continue;
+                }
+
+                boolean optionValid = true;
+                boolean filesExist = true;
+
+                // ---------- validate options ----------
+                for (String part : parts) {
+                    if (part.startsWith("-")) {
+                        String optionKey = CacheManager.key(scope, baseCmd + "|" + part);
+                        optionValid = cacheManager.getOrLoadOption(optionKey, () -> {
+                            String testOutput = cleanOutput(host,
+                                    execCommand(host, baseCmd + " " + part + " --help 2>&1", session));
+                            return !(testOutput.contains("Unrecognized option") ||
+                                    testOutput.contains("invalid option"));
+                        });
+                        if (!optionValid)
+                            break;
                     }
+                }
 
-                    // ---------- validate paths ----------
-                    for (String part : parts) {
-                        if (part.startsWith("/") && !part.equals(baseCmd) && !part.startsWith("-")) {
-                            filesExist = cacheManager.getOrLoadPath(part, () -> {
-                                try {
-                                    String pathCheck = "[ -e " + part + " ] && echo exists || echo missing";
-                                    String testOutput = execCommand(host, pathCheck, session);
-                                    return "exists".equals(testOutput.trim());
-                                } catch (Exception e) {
-                                    return false;
-                                }
-                            });
-                            if (!filesExist)
-                                break;
-                        }
+                // ---------- validate paths ----------
+                for (String part : parts) {
+                    if (part.startsWith("/") && !part.equals(baseCmd) && !part.startsWith("-")) {
+                        filesExist = cacheManager.getOrLoadPath(CacheManager.key(scope, part), () -> {
+                            String pathCheck = "[ -e " + part + " ] && echo exists || echo missing";
+                            String testOutput = cleanOutput(host, execCommand(host, pathCheck, session));
+                            return "exists".equals(testOutput);
+                        });
+                        if (!filesExist)
+                            break;
                     }
+                }
 
-                    // ---------- set result ----------
-                    if (!optionValid)
-                        results.put(cmd, "<span class='text-warning'>Invalid option</span>");
-                    else if (!filesExist)
-                        results.put(cmd, "<span class='text-warning'>Path not found</span>");
-                    else
-                        results.put(cmd, "<span class='text-success'>Valid</span>");
+                // ---------- set result ----------
+                if (!optionValid)
+                    results.put(cmd, "<span class='text-warning'>Invalid option</span>");
+                else if (!filesExist)
+                    results.put(cmd, "<span class='text-warning'>Path not found</span>");
+                else
+                    results.put(cmd, "<span class='text-success'>Valid</span>");
 
-                } catch (Exception e) {
-                    results.put(cmd, "<span class='text-danger'>Error: " + e.getMessage() + "</span>");
-                }
+            } catch (Exception e) {
+                results.put(cmd, "<span class='text-danger'>Error: " + e.getMessage() + "</span>");
             }
+        }
 
-        } catch (Exception e) {
+        return results;
+    }
+
+    // -------------------- BATCH VALIDATION --------------------
+    /**
+     * Validates every command in one round trip (plus one for the OS
+     * fingerprint when it is due a check): a generated script is piped
+     * to "sh -s" and answers each probe not already cached with a tagged line
+     * (ROS, kind, index, value). Probes another validation of the same host
+     * already has in flight are waited on rather than repeated. Statuses match
+     * validateCommands.
+     */
+    public Map<String, String> validateCommandsBatch(Host host, List<String> commands, Session session) {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        if (session == null || !session.isConnected()) {
             for (String cmd : commands)
-                results.put(cmd, "<span class='text-danger'>Host connection failed</span>");
-        } finally {
-            if (tmpSession != null && tmpSession.isConnected()) {
-                tmpSession.disconnect();
+                results.put(cmd, "<span class='text-danger'>SSH session not connected</span>");
+            return results;
+        }
+
+        String scope = CacheManager.scope(host);
+        checkFingerprint(host, scope, session); // before anything cached for the host is served
+        Map<String, CompletableFuture<String>> cmdPaths = new HashMap<>();
+        Map<String, CompletableFuture<Boolean>> options = new HashMap<>();
+        Map<String, CompletableFuture<Boolean>> paths = new HashMap<>();
+        ProbeBatch<String> cmdProbes = new ProbeBatch<>(cacheManager.commands());
+        ProbeBatch<Boolean> optionProbes = new ProbeBatch<>(cacheManager.options());
+        ProbeBatch<Boolean> pathProbes = new ProbeBatch<>(cacheManager.paths());
+        StringBuilder script = new StringBuilder();
+
+        // ---------- build script for everything not cached or in flight ----------
+        for (String cmd : commands) {
+            String[] parts = cmd.split("\\s+");
+            String baseCmd = parts[0];
+
+            if (!cmdPaths.containsKey(baseCmd)) {
+                cmdPaths.put(baseCmd, cmdProbes.claim(CacheManager.key(scope, baseCmd), script,
+                        idx -> "c=$(command -v " + shellQuote(baseCmd) + " 2>/dev/null)\n"
+                                + "printf 'ROS\\tC\\t%d\\t%s\\n' " + idx + " \"$c\"\n"));
+            }
+
+            for (String part : parts) {
+                if (part.startsWith("-")) {
+                    String optionKey = baseCmd + "|" + part;
+                    if (options.containsKey(optionKey))
+                        continue;
+                    CompletableFuture<String> cmdPath = cmdPaths.get(baseCmd);
+                    if (cmdPath.isDone() && !cmdPath.isCompletedExceptionally() && cmdPath.join().isEmpty())
+                        continue; // command known to be missing, option is never looked at
+                    options.put(optionKey, optionProbes.claim(CacheManager.key(scope, optionKey), script,
+                            idx -> "command -v " + shellQuote(baseCmd) + " >/dev/null 2>&1 && { "
+                                    + shellQuote(baseCmd) + ' ' + shellQuote(part)
+                                    + " --help </dev/null 2>&1 | grep -qE 'Unrecognized option|invalid option'"
+                                    + " && r=0 || r=1; printf 'ROS\\tO\\t%d\\t%s\\n' " + idx + " $r; }\n"));
+                }
+            }
+
+            for (String part : parts) {
+                if (part.startsWith("/") && !part.equals(baseCmd) && !part.startsWith("-")
+                        && !paths.containsKey(part)) {
+                    paths.put(part, pathProbes.claim(CacheManager.key(scope, part), script,
+                            idx -> "[ -e " + shellQuote(part) + " ] && r=1 || r=0; printf 'ROS\\tP\\t%d\\t%s\\n' "
+                                    + idx + " $r\n"));
+                }
+            }
+        }
+
+        // ---------- one round trip, then parse the tagged reply ----------
+        if (script.length() > 0) {
+            try {
+                CommandOutput reply = execCaptureAsync(host, "sh -s",
+                        script.toString().getBytes(StandardCharsets.UTF_8), session).get();
+                // The full stdout, not the preview: a large reply spills and only its head and tail are kept
+                try (BufferedReader in = new BufferedReader(
+                        new InputStreamReader(reply.getStdout().open(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null)
+                        answer(line, cmdProbes, optionProbes, pathProbes);
+                } finally {
+                    reply.discard(); // nobody downloads a probe reply
+                }
+            } catch (Exception e) {
+                Exception cause = e instanceof ExecutionException && e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : e;
+                cmdProbes.failUnanswered(cause);
+                optionProbes.failUnanswered(cause);
+                pathProbes.failUnanswered(cause);
+            }
+            Exception missing = new IllegalStateException("no probe result");
+            cmdProbes.failUnanswered(missing);
+            optionProbes.failUnanswered(missing);
+            pathProbes.failUnanswered(missing);
+        }
+
+        // ---------- map probe answers back to per-command statuses ----------
+        for (String cmd : commands) {
+            String[] parts = cmd.split("\\s+");
+            String baseCmd = parts[0];
+
+            try {
+                String cmdPath = cmdPaths.get(baseCmd).join();
+                if (cmdPath.isEmpty()) {
+                    results.put(cmd, "<span class='text-danger'>Invalid command</span>");
+                    continue;
+                }
+
+                boolean optionValid = true;
+                boolean filesExist = true;
+                for (String part : parts) {
+                    if (part.startsWith("-"))
+                        optionValid &= options.get(baseCmd + "|" + part).join();
+                    else if (part.startsWith("/") && !part.equals(baseCmd))
+                        filesExist &= paths.get(part).join();
+                }
+
+                if (!optionValid)
+                    results.put(cmd, "<span class='text-warning'>Invalid option</span>");
+                else if (!filesExist)
+                    results.put(cmd, "<span class='text-warning'>Path not found</span>");
+                else
+                    results.put(cmd, "<span class='text-success'>Valid</span>");
+            } catch (CompletionException e) {
+                results.put(cmd, "<span class='text-danger'>Error: " + e.getCause().getMessage() + "</span>");
             }
         }
 
         return results;
     }
 
+    // One tagged reply line; anything else, or a line garbled in transit, answers nothing
+    private static void answer(String line, ProbeBatch<String> cmdProbes, ProbeBatch<Boolean> optionProbes,
+            ProbeBatch<Boolean> pathProbes) {
+        String[] f = line.trim().split("\t", 4);
+        if (f.length < 3 || !"ROS".equals(f[0]))
+            return;
+        int idx;
+        try {
+            idx = Integer.parseInt(f[2]);
+        } catch (NumberFormatException e) {
+            return; // its probe fails as "no probe result"
+        }
+        String value = f.length == 4 ? f[3].trim() : "";
+        switch (f[1]) {
+            case "C":
+                cmdProbes.answer(idx, value);
+                break;
+            case "O":
+                optionProbes.answer(idx, "1".equals(value));
+                break;
+            case "P":
+                pathProbes.answer(idx, "1".equals(value));
+                break;
+        }
+    }
+
+    // A changed fingerprint drops the host's cached answers, so it is checked before any are read
+    private void checkFingerprint(Host host, String scope, Session session) {
+        if (!cacheManager.claimFingerprintCheck(scope))
+            return;
+        try {
+            cacheManager.updateFingerprint(scope, execCommand(host, FINGERPRINT_COMMAND, session).trim());
+        } catch (Exception e) {
+            // unknown fingerprint: keep using what is cached, the next validation checks again
+        } finally {
+            cacheManager.finishFingerprintCheck(scope);
+        }
+    }
+
+    private static String shellQuote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
     // -------------------- CLEAN OUTPUT --------------------
-    private String cleanOutput(String rawOutput) {
-        return Arrays.stream(rawOutput.split("\n"))
-                .map(String::trim)
-                .filter(line -> !line.isEmpty() &&
-                        !line.startsWith("Last login:") &&
-                        !line.toLowerCase().contains("register this system"))
-                .reduce("", (a, b) -> a.isEmpty() ? b : a + "\n" + b)
-                .trim();
+    private String cleanOutput(Host host, String rawOutput) {
+        return OutputFilter.forHost(host).clean(rawOutput);
     }
 }
@@ -1,17 +1,349 @@
-
 import models.Host;
-import io.cloudsoft.winrm4j.winrm.*;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Runs commands on Windows hosts over WinRM. Each command is sent once, in a
+ * remote shell leased from HostSessionManager, and stdout and stderr are
+ * captured together the same way SSH output is (filtered, capped in memory,
+ * spilled to disk past the cap).
+ */
 public class WinRMManager {
 
+    // cmd.exe caps a command line at 8191 chars; an encoded probe script is split to stay under it
+    private static final int MAX_COMMAND_CHARS = Integer.getInteger("ros.winrm.maxCommandChars", 8000);
+    private static final String POWERSHELL = "powershell -NoProfile -NonInteractive -EncodedCommand ";
+
+    // Defined once per probe script so that each probe is a short call. Aliases win over functions
+    // (r is Invoke-History), so only the probe calls c and p get one-letter names. Commands run in
+    // cmd.exe, so a name resolves the way cmd (and where.exe) finds it: an application on the PATH
+    // with one of the PATHEXT extensions, or an explicit path; cmdlets and aliases do not count.
+    private static final String PROBE_FUNCTIONS = String.join("\n",
+            "$ProgressPreference='SilentlyContinue'",
+            "function Write-RosReply($k,$i,$v){\"ROS`t$k`t$i`t$v\"}",
+            "function c($i,$n){$x=Get-Command -Name $n -CommandType Application -ErrorAction SilentlyContinue|"
+                    + "Select-Object -First 1;Write-RosReply C $i $(if($x){$x.Path}else{''})}",
+            "function p($i,$f){Write-RosReply P $i $(if(Test-Path -LiteralPath $f){1}else{0})}",
+            "");
+
+    // Commands cmd.exe runs itself; they have no executable for where.exe to find
+    private static final Set<String> CMD_BUILTINS = Set.of("assoc", "break", "call", "cd", "chdir", "cls", "color",
+            "copy", "date", "del", "dir", "echo", "endlocal", "erase", "exit", "for", "ftype", "goto", "if", "md",
+            "mkdir", "mklink", "move", "path", "pause", "popd", "prompt", "pushd", "rd", "rem", "ren", "rename",
+            "rmdir", "set", "setlocal", "shift", "start", "time", "title", "type", "ver", "verify", "vol");
+
+    private static final String FINGERPRINT_PROBE =
+            "Write-RosReply F 0 \"$([Environment]::OSVersion.VersionString) $($PSVersionTable.PSVersion)\"\n";
+
+    // Drive-rooted (C:\ or C:/) and UNC (\\server\share) paths
+    private static final Pattern WINDOWS_PATH = Pattern.compile("^(?:[A-Za-z]:[\\\\/]|\\\\\\\\)");
+
     private final HostSessionManager hostSessionManager;
+    private final CacheManager cacheManager;
+
+    // WinRM calls block for the whole command; one thread per leased shell
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "winrm-exec");
+        t.setDaemon(true);
+        return t;
+    });
 
-    public WinRMManager(HostSessionManager hostSessionManager) {
+    // Closes the shell under a command that outlives ros.health.execTimeoutMs, when set
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "winrm-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public WinRMManager(HostSessionManager hostSessionManager, CacheManager cacheManager) {
         this.hostSessionManager = hostSessionManager;
+        this.cacheManager = cacheManager;
     }
 
     public String execCommand(Host host, String command) {
-        WinRmTool tool = hostSessionManager.getWinRMSession(host);
-        return tool.executeCommand(command).getStdOut() + tool.executeCommand(command).getStdErr();
+        return execCommandsAsync(host, List.of(command), 1, null).get(0).join();
+    }
+
+    /**
+     * One future per command, in order. Up to maxShells shells are leased for
+     * the host and each takes the next pending command when it finishes one,
+     * so with maxShells = 1 the commands run strictly in sequence in a single
+     * shell. A shell that fails is discarded and the next command gets a
+     * fresh one. The shells are tracked by the job, if any, so cancelling it
+     * closes them under their running commands; commands not started by then
+     * complete with "Cancelled".
+     */
+    public List<CompletableFuture<String>> execCommandsAsync(Host host, List<String> commands, int maxShells,
+            Job job) {
+        List<CompletableFuture<String>> futures = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++)
+            futures.add(new CompletableFuture<>());
+
+        AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(Math.max(1, maxShells), commands.size());
+        for (int w = 0; w < workers; w++)
+            executor.execute(() -> runCommands(host, commands, futures, next, job));
+        return futures;
+    }
+
+    private void runCommands(Host host, List<String> commands, List<CompletableFuture<String>> futures,
+            AtomicInteger next, Job job) {
+        HostSessionManager.WinRmShell shell = null;
+        try {
+            int i;
+            while ((i = next.getAndIncrement()) < commands.size()) {
+                if (job != null && job.isCancelled()) {
+                    futures.get(i).complete("Cancelled");
+                    continue;
+                }
+                try {
+                    if (shell == null) {
+                        shell = hostSessionManager.leaseWinRMShell(host);
+                        if (job != null)
+                            job.track(shell);
+                    }
+                    futures.get(i).complete(OutputInterner.intern(exec(host, commands.get(i), shell)));
+                } catch (Exception e) {
+                    // The shell may be half-broken; never hand it to the next command
+                    if (shell != null) {
+                        if (job != null)
+                            job.untrack(shell);
+                        hostSessionManager.invalidateWinRMShell(host, shell);
+                    }
+                    shell = null;
+                    futures.get(i).completeExceptionally(e);
+                }
+            }
+        } finally {
+            if (shell != null && job != null && !job.untrack(shell))
+                hostSessionManager.invalidateWinRMShell(host, shell);
+            else
+                hostSessionManager.releaseWinRMShell(host, shell);
+        }
+    }
+
+    private CommandOutput exec(Host host, String command, HostSessionManager.WinRmShell shell) throws IOException {
+        FlightEvents.WinRmExec event = new FlightEvents.WinRmExec();
+        event.begin();
+        long start = System.nanoTime();
+        CommandOutput output = null;
+        try {
+            CommandOutput capture = new CommandOutput();
+            OutputFilter filter = OutputFilter.forHost(host);
+            long timeoutMs = hostSessionManager.getHealth().execTimeoutMs();
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> timeout = timeoutMs <= 0 ? null : watchdog.schedule(() -> {
+                timedOut.set(true);
+                shell.close(); // execute() fails, and the caller discards the shell
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            try (Writer out = new OutputStreamWriter(filter.wrap(capture.getStdout()), StandardCharsets.UTF_8);
+                 Writer err = new OutputStreamWriter(filter.wrap(capture.getStderr()), StandardCharsets.UTF_8)) {
+                shell.execute(command, out, err);
+            } catch (RuntimeException e) {
+                if (timedOut.get())
+                    throw new IOException("No end of output after " + timeoutMs + " ms: " + command, e);
+                throw e;
+            } finally {
+                if (timeout != null)
+                    timeout.cancel(false);
+            }
+            output = capture;
+            return output;
+        } catch (IOException | RuntimeException e) {
+            Metrics.WINRM_FAILURES.inc(host.getHost());
+            throw e;
+        } finally {
+            Metrics.WINRM_EXEC.since(start, host.getHost(), command);
+            event.end();
+            if (event.shouldCommit()) {
+                event.host = host.getHost();
+                event.command = command;
+                event.success = output != null;
+                event.outputBytes = output == null ? 0 : output.size();
+                event.commit();
+            }
+        }
+    }
+
+    // -------------------- BATCH VALIDATION --------------------
+    /**
+     * Validates every command with one PowerShell script per host, the
+     * Windows counterpart of SSHManager.validateCommandsBatch, following the
+     * rules of the cmd.exe shell commands run in: cmd built-ins are valid as
+     * they are, other names must resolve to a program the way where.exe
+     * finds them, and drive-rooted or UNC paths are checked with Test-Path.
+     * Options are not checked: cmd hands them to the program unparsed and
+     * native programs declare none. Answers go to the same caches, under the
+     * host's scope, and statuses read the same as for Linux hosts. The probe
+     * script itself runs in PowerShell and is only split when it would not
+     * fit on one command line.
+     */
+    public Map<String, String> validateCommandsBatch(Host host, List<String> commands) {
+        Map<String, String> results = new LinkedHashMap<>();
+        String scope = CacheManager.scope(host);
+        checkFingerprint(host, scope); // before anything cached for the host is served
+        Map<String, CompletableFuture<String>> cmdPaths = new HashMap<>();
+        Map<String, CompletableFuture<Boolean>> paths = new HashMap<>();
+        ProbeBatch<String> cmdProbes = new ProbeBatch<>(cacheManager.commands());
+        ProbeBatch<Boolean> pathProbes = new ProbeBatch<>(cacheManager.paths());
+        StringBuilder script = new StringBuilder();
+
+        // ---------- build script for everything not cached or in flight ----------
+        for (String cmd : commands) {
+            String[] parts = cmd.trim().split("\\s+");
+            String baseCmd = parts[0];
+
+            if (CMD_BUILTINS.contains(baseCmd.toLowerCase(Locale.ROOT))) {
+                cmdPaths.put(baseCmd, CompletableFuture.completedFuture(baseCmd));
+            } else if (!cmdPaths.containsKey(baseCmd)) {
+                cmdPaths.put(baseCmd, cmdProbes.claim(CacheManager.key(scope, baseCmd), script,
+                        idx -> "c " + idx + " " + psQuote(baseCmd) + "\n"));
+            }
+
+            for (String part : parts) {
+                if (isPath(part, baseCmd) && !paths.containsKey(part)) {
+                    paths.put(part, pathProbes.claim(CacheManager.key(scope, part), script,
+                            idx -> "p " + idx + " " + psQuote(part) + "\n"));
+                }
+            }
+        }
+
+        // ---------- one round trip per command line, then parse the tagged replies ----------
+        if (script.length() > 0) {
+            HostSessionManager.WinRmShell shell = null;
+            try {
+                shell = hostSessionManager.leaseWinRMShell(host);
+                for (String chunk : split(script)) {
+                    String reply = exec(host, POWERSHELL + encode(PROBE_FUNCTIONS + chunk), shell).toString();
+                    for (String line : reply.split("\n")) {
+                        String[] f = line.trim().split("\t", 4);
+                        if (f.length < 3 || !"ROS".equals(f[0]))
+                            continue;
+                        int idx = Integer.parseInt(f[2]);
+                        String value = f.length == 4 ? f[3].trim() : "";
+                        switch (f[1]) {
+                            case "C":
+                                cmdProbes.answer(idx, value);
+                                break;
+                            case "P":
+                                pathProbes.answer(idx, "1".equals(value));
+                                break;
+                        }
+                    }
+                }
+                hostSessionManager.releaseWinRMShell(host, shell);
+            } catch (Exception e) {
+                if (shell != null)
+                    hostSessionManager.invalidateWinRMShell(host, shell);
+                cmdProbes.failUnanswered(e);
+                pathProbes.failUnanswered(e);
+            }
+            Exception missing = new IllegalStateException("no probe result");
+            cmdProbes.failUnanswered(missing);
+            pathProbes.failUnanswered(missing);
+        }
+
+        // ---------- map probe answers back to per-command statuses ----------
+        for (String cmd : commands) {
+            String[] parts = cmd.trim().split("\\s+");
+            String baseCmd = parts[0];
+
+            try {
+                String cmdPath = cmdPaths.get(baseCmd).join();
+                if (cmdPath.isEmpty()) {
+                    results.put(cmd, "<span class='text-danger'>Invalid command</span>");
+                    continue;
+                }
+
+                boolean filesExist = true;
+                for (String part : parts) {
+                    if (isPath(part, baseCmd))
+                        filesExist &= paths.get(part).join();
+                }
+
+                if (!filesExist)
+                    results.put(cmd, "<span class='text-warning'>Path not found</span>");
+                else
+                    results.put(cmd, "<span class='text-success'>Valid</span>");
+            } catch (CompletionException e) {
+                results.put(cmd, "<span class='text-danger'>Error: " + e.getCause().getMessage() + "</span>");
+            }
+        }
+
+        return results;
+    }
+
+    // A changed fingerprint drops the host's cached answers, so it is checked before any are read
+    private void checkFingerprint(Host host, String scope) {
+        if (!cacheManager.claimFingerprintCheck(scope))
+            return;
+        HostSessionManager.WinRmShell shell = null;
+        try {
+            shell = hostSessionManager.leaseWinRMShell(host);
+            String reply = exec(host, POWERSHELL + encode(PROBE_FUNCTIONS + FINGERPRINT_PROBE), shell).toString();
+            for (String line : reply.split("\n")) {
+                String[] f = line.trim().split("\t", 4);
+                if (f.length == 4 && "ROS".equals(f[0]) && "F".equals(f[1]))
+                    cacheManager.updateFingerprint(scope, f[3].trim());
+            }
+            hostSessionManager.releaseWinRMShell(host, shell);
+        } catch (Exception e) {
+            // unknown fingerprint: keep using what is cached, the next validation checks again
+            if (shell != null)
+                hostSessionManager.invalidateWinRMShell(host, shell);
+        } finally {
+            cacheManager.finishFingerprintCheck(scope);
+        }
+    }
+
+    private static boolean isPath(String part, String baseCmd) {
+        return !part.equals(baseCmd) && WINDOWS_PATH.matcher(part).find();
+    }
+
+    /** Probe lines packed into as few scripts as fit on one encoded command line each. */
+    private static List<String> split(StringBuilder script) {
+        // UTF-16LE doubles the chars, base64 adds a third
+        int maxChars = (MAX_COMMAND_CHARS - POWERSHELL.length()) / 4 * 3 / 2 - PROBE_FUNCTIONS.length();
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < script.length()) {
+            int end = start;
+            int next;
+            while ((next = script.indexOf("\n", end) + 1) > 0 && (next - start <= maxChars || end == start))
+                end = next;
+            chunks.add(script.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static String encode(String script) {
+        return Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_16LE));
+    }
+
+    // PowerShell also treats the typographic single quotes as quote characters
+    private static String psQuote(String s) {
+        return "'" + s.replaceAll("['\u2018\u2019\u201A\u201B]", "$0$0") + "'";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CacheManager lookups from many threads at once, the shape of a fleet-wide
+ * validation: mostly hits on host-scoped keys, plus a miss path where every
+ * thread asks for keys nobody has loaded yet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class CacheBench {
+
+    @Param({ "10000" })
+    public int keys;
+
+    private Object cacheManager;
+    private String[] hotKeys;
+    private Object loader;
+    private final AtomicLong fresh = new AtomicLong();
+
+    @Setup
+    public void setup() throws Throwable {
+        cacheManager = Ros.newCacheManager();
+        loader = Ros.loader(() -> "/usr/bin/ls");
+        hotKeys = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            hotKeys[i] = "root@10.0." + (i >> 8) + "." + (i & 255) + "#linux|cmd" + (i % 50);
+            Ros.getOrLoadCommand(cacheManager, hotKeys[i], loader);
+        }
+    }
+
+    @Benchmark
+    public String hit() throws Throwable {
+        return Ros.getOrLoadCommand(cacheManager, hotKeys[ThreadLocalRandom.current().nextInt(keys)], loader);
+    }
+
+    @Benchmark
+    public String miss() throws Throwable {
+        return Ros.getOrLoadCommand(cacheManager, "root@10.9.9.9#linux|new" + fresh.incrementAndGet(), loader);
+    }
+
+    /** Threads racing on the same few keys, where coalescing matters. */
+    @Benchmark
+    public String contended() throws Throwable {
+        return Ros.getOrLoadCommand(cacheManager, hotKeys[ThreadLocalRandom.current().nextInt(8)], loader);
+    }
+}
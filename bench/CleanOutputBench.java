@@ -0,0 +1,43 @@
+package bench;
+
+import models.Host;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** SSHManager.cleanOutput on command output with login banners, blank lines and noise. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CleanOutputBench {
+
+    @Param({ "10", "1000", "100000" })
+    public int lines;
+
+    private final Host host = new Host("10.0.0.1", "root", "secret", "linux");
+    private Object sshManager;
+    private String raw;
+
+    @Setup
+    public void setup() throws Throwable {
+        sshManager = Ros.newSshManager();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Last login: Mon Jan  1 00:00:00 2024 from 10.0.0.1\n");
+        sb.append("This system is not registered. Run subscription-manager to register this system.\n\n");
+        for (int i = 0; i < lines; i++) {
+            if (i % 10 == 9)
+                sb.append("   \n");
+            else
+                sb.append("  drwxr-xr-x 2 root root 4096 Jan  1 00:00 dir").append(i).append("  \n");
+        }
+        raw = sb.toString();
+    }
+
+    @Benchmark
+    public String cleanOutput() throws Throwable {
+        return Ros.cleanOutput(sshManager, host, raw);
+    }
+}
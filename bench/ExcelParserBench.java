@@ -0,0 +1,43 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Streaming parse of generated inventories; the parser's per-host logging goes to a null stream. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class ExcelParserBench {
+
+    @Param({ "1000", "10000", "100000" })
+    public int rows;
+
+    private Path workbook;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws Exception {
+        workbook = Workbooks.write(rows, 20);
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.setOut(stdout);
+        Files.deleteIfExists(workbook);
+    }
+
+    @Benchmark
+    public Object parseInventory() throws Throwable {
+        return Ros.parseInventory(workbook.toString());
+    }
+}
@@ -0,0 +1,142 @@
+package bench;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/** A POST exchange over an in-memory request body, for the upload and form helpers. */
+final class FakeExchange extends HttpExchange {
+
+    static final String BOUNDARY = "----RosBenchBoundary7MA4YWxkTrZu0gW";
+
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private InputStream body;
+    private OutputStream response = OutputStream.nullOutputStream();
+
+    FakeExchange(String contentType, byte[] body) {
+        requestHeaders.set("Content-Type", contentType);
+        this.body = new ByteArrayInputStream(body);
+    }
+
+    /** A multipart body with a few form fields and one file part of fileSize bytes. */
+    static byte[] multipartBody(int fileSize, int fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize + 256 * (fields + 1));
+        try {
+            for (int i = 0; i < fields; i++) {
+                out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"host\"\r\n\r\n10.0.0." + i
+                        + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+            out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"commands.xlsx\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            byte[] chunk = new byte[8192];
+            for (int i = 0; i < chunk.length; i++)
+                chunk[i] = (byte) (i * 31 + 7); // arbitrary binary content
+            for (int left = fileSize; left > 0; left -= chunk.length)
+                out.write(chunk, 0, Math.min(chunk.length, left));
+            out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    static String multipartContentType() {
+        return "multipart/form-data; boundary=" + BOUNDARY;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return URI.create("/execute");
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return "POST";
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return body;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return response;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return InetSocketAddress.createUnresolved("127.0.0.1", 40000);
+    }
+
+    @Override
+    public int getResponseCode() {
+        return 200;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return InetSocketAddress.createUnresolved("127.0.0.1", 8080);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null)
+            body = i;
+        if (o != null)
+            response = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+}
@@ -0,0 +1,181 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives Robot's validate and execute flows against a {@link FleetSimulator}
+ * at fleet sizes the JMH suite can't reach. Each size uses its own 127.N.*.*
+ * range so the first validation of a round starts with a cold cache; the
+ * second one shows the warm path. The pipelined column is a "run" job
+ * (validate then execute per host, no barrier) over another cold range of
+ * the same size, to compare against validate cold + execute.
+ *
+ *   java -cp "target/benchmarks.jar:lib/*" [-Dros.sim.*=...] bench.FleetDriver [hosts...]
+ *
+ * Sizes default to 10 100 1000. Robot runs in-process on :8080 unless
+ * -Dros.sim.robotUrl points at one started separately with
+ * -Dros.ssh.port set to the simulator's port (ros.sim.port, default 2222).
+ */
+public final class FleetDriver {
+
+    private static final Pattern UPLOAD = Pattern.compile("name='upload' value='([^']*)'");
+    private static final Pattern VALID_HOST = Pattern.compile("type='checkbox' name='host' value='([^']*)'");
+    private static final Pattern JOB_ID = Pattern.compile("\"id\":\"([^\"]+)\"");
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final String robotUrl;
+
+    private FleetDriver(String robotUrl) {
+        this.robotUrl = robotUrl;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int port = Integer.getInteger("ros.sim.port", 2222);
+        int commands = Integer.getInteger("ros.sim.commands", 10);
+        String robotUrl = System.getProperty("ros.sim.robotUrl");
+
+        FleetSimulator sim = new FleetSimulator(port).start();
+        if (robotUrl == null) {
+            System.setProperty("ros.ssh.port", String.valueOf(port));
+            System.setProperty("ros.cache.file", ""); // keep the real cache log out of it
+            Ros.startRobot();
+            robotUrl = "http://localhost:8080";
+        }
+
+        int[] sizes = args.length > 0 ? new int[args.length] : new int[] { 10, 100, 1000 };
+        for (int i = 0; i < args.length; i++)
+            sizes[i] = Integer.parseInt(args[i]);
+
+        FleetDriver driver = new FleetDriver(robotUrl);
+        List<String> report = new ArrayList<>();
+        report.add(String.format("%7s %7s %14s %14s %12s %10s %12s", "hosts", "valid", "validate cold",
+                "validate warm", "execute", "hosts/s", "pipelined"));
+        for (int round = 0; round < sizes.length; round++)
+            report.add(driver.run(round, sizes[round], commands));
+
+        System.out.println();
+        report.forEach(System.out::println);
+        System.out.println("simulator: " + sim.stats());
+        sim.close();
+        System.exit(0);
+    }
+
+    private String run(int round, int hosts, int commands) throws Exception {
+        List<String> addresses = new ArrayList<>(hosts);
+        for (int i = 0; i < hosts; i++)
+            addresses.add("127." + (round + 1) + "." + (i / 250) + "." + (i % 250 + 1));
+        Path workbook = Workbooks.write(addresses, commands);
+        try {
+            long start = System.nanoTime();
+            String page = validate(workbook);
+            long cold = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            validate(workbook);
+            long warm = System.nanoTime() - start;
+
+            Matcher upload = UPLOAD.matcher(page);
+            if (!upload.find())
+                throw new IOException("No upload id in validation page: "
+                        + page.substring(0, Math.min(200, page.length())));
+            List<String> valid = new ArrayList<>();
+            for (Matcher m = VALID_HOST.matcher(page); m.find();)
+                valid.add(m.group(1));
+
+            start = System.nanoTime();
+            execute(upload.group(1), valid);
+            long exec = System.nanoTime() - start;
+
+            long pipelined = pipelined(round, hosts, commands);
+
+            return String.format("%7d %7d %12dms %12dms %10dms %10.1f %10dms", hosts, valid.size(),
+                    cold / 1_000_000, warm / 1_000_000, exec / 1_000_000, valid.size() * 1e9 / Math.max(1, exec),
+                    pipelined / 1_000_000);
+        } finally {
+            Files.deleteIfExists(workbook);
+        }
+    }
+
+    // Nanoseconds for a "run" job over a fresh 127.(101+round).*.* range, submit to last host finished
+    private long pipelined(int round, int hosts, int commands) throws Exception {
+        List<String> addresses = new ArrayList<>(hosts);
+        for (int i = 0; i < hosts; i++)
+            addresses.add("127." + (round + 101) + "." + (i / 250) + "." + (i % 250 + 1));
+        Path workbook = Workbooks.write(addresses, commands);
+        try {
+            long start = System.nanoTime();
+            String job = post("/jobs", FakeExchange.multipartContentType(), multipart(workbook, "run"), 202);
+            Matcher id = JOB_ID.matcher(job);
+            if (!id.find())
+                throw new IOException("No job id in " + job);
+            // The summaries in the job list carry no per-host states to match by mistake
+            String done = "\"id\":\"" + id.group(1) + "\",\"mode\":\"run\",\"state\":\"DONE\"";
+            while (!get("/jobs").contains(done))
+                Thread.sleep(20);
+            return System.nanoTime() - start;
+        } finally {
+            Files.deleteIfExists(workbook);
+        }
+    }
+
+    private String validate(Path workbook) throws Exception {
+        return post("/validate", FakeExchange.multipartContentType(), multipart(workbook, null));
+    }
+
+    private static byte[] multipart(Path workbook, String mode) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (mode != null)
+            body.write(("--" + FakeExchange.BOUNDARY + "\r\nContent-Disposition: form-data; name=\"mode\"\r\n\r\n"
+                    + mode + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        body.write(("--" + FakeExchange.BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; "
+                + "filename=\"commands.xlsx\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        body.write(Files.readAllBytes(workbook));
+        body.write(("\r\n--" + FakeExchange.BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return body.toByteArray();
+    }
+
+    private String execute(String uploadId, List<String> hosts) throws Exception {
+        StringBuilder form = new StringBuilder("upload=").append(URLEncoder.encode(uploadId, StandardCharsets.UTF_8));
+        for (String host : hosts)
+            form.append("&host=").append(URLEncoder.encode(host, StandardCharsets.UTF_8));
+        return post("/execute", "application/x-www-form-urlencoded", form.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String post(String path, String contentType, byte[] body) throws Exception {
+        return post(path, contentType, body, 200);
+    }
+
+    private String post(String path, String contentType, byte[] body, int expectedStatus) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(robotUrl + path))
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return send(request, expectedStatus);
+    }
+
+    private String get(String path) throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(robotUrl + path)).GET().build(), 200);
+    }
+
+    private String send(HttpRequest request, int expectedStatus) throws Exception {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != expectedStatus)
+            throw new IOException(request.uri().getPath() + " returned " + response.statusCode());
+        return response.body();
+    }
+}
@@ -0,0 +1,262 @@
+package bench;
+
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process SSH fleet on one port. Every 127.x.y.z address reaches the
+ * loopback interface on Linux, so hosts 127.0.0.1 .. 127.3.232.x are all
+ * "different machines" served by this one listener.
+ *
+ * Commands are not run; the simulator answers the probes the validator sends
+ * (command -v, option --help, [ -e path ], uname, and the generated
+ * "sh -s" probe script) and returns filler output for anything else. Names
+ * containing "missing" are absent commands or paths, options containing
+ * "bogus" are rejected.
+ *
+ * Settings (system properties):
+ *   ros.sim.latencyMs            delay before a command answers (default 20)
+ *   ros.sim.jitterMs             extra uniform random delay (default 10)
+ *   ros.sim.bandwidthKBps        per-channel output rate, 0 = unlimited (default 0)
+ *   ros.sim.outputBytes          output size of ordinary commands (default 4096)
+ *   ros.sim.authFailureRate      share of logins refused (default 0)
+ *   ros.sim.execFailureRate      share of commands whose session is dropped (default 0)
+ */
+public class FleetSimulator implements Closeable {
+
+    private static final String UNAME = "Linux 5.15.0-sim x86_64";
+    private static final Pattern COMMAND_V = Pattern.compile("^command -v '?([^'\\s]+)'?");
+    private static final Pattern HELP = Pattern.compile("^'?([^'\\s]+)'? '?([^'\\s]+)'? --help");
+    private static final Pattern PATH_TEST = Pattern.compile("^\\[ -e '?([^'\\s]+)'? \\]");
+    private static final Pattern SCRIPT_COMMAND = Pattern.compile("^c=\\$\\(command -v '([^']*)'");
+    private static final Pattern SCRIPT_REPLY = Pattern.compile("printf 'ROS\\\\t([FCOP])\\\\t(?:%d|0)\\\\t%s\\\\n' (\\d+|\"\\$\\()");
+    private static final Pattern SCRIPT_OPTION = Pattern.compile("^command -v '([^']*)' >/dev/null 2>&1 && \\{ '[^']*' '([^']*)'");
+    private static final Pattern SCRIPT_PATH = Pattern.compile("^\\[ -e '([^']*)' \\]");
+
+    private final int port;
+    private final long latencyMs = Long.getLong("ros.sim.latencyMs", 20);
+    private final long jitterMs = Long.getLong("ros.sim.jitterMs", 10);
+    private final long bandwidthBps = Long.getLong("ros.sim.bandwidthKBps", 0) * 1024;
+    private final int outputBytes = Integer.getInteger("ros.sim.outputBytes", 4096);
+    private final double authFailureRate = Double.parseDouble(System.getProperty("ros.sim.authFailureRate", "0"));
+    private final double execFailureRate = Double.parseDouble(System.getProperty("ros.sim.execFailureRate", "0"));
+
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, daemon("sim-timer"));
+    private final ExecutorService workers = Executors.newFixedThreadPool(512, daemon("sim-exec"));
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private SshServer server;
+
+    public FleetSimulator(int port) {
+        this.port = port;
+    }
+
+    public FleetSimulator start() throws IOException {
+        server = SshServer.setUpDefaultServer();
+        server.setHost("0.0.0.0");
+        server.setPort(port);
+        SimpleGeneratorHostKeyProvider keys = new SimpleGeneratorHostKeyProvider();
+        keys.setAlgorithm(KeyUtils.EC_ALGORITHM);
+        keys.setKeySize(256);
+        server.setKeyPairProvider(keys);
+        server.setPasswordAuthenticator((user, password, session) -> {
+            logins.incrementAndGet();
+            return ThreadLocalRandom.current().nextDouble() >= authFailureRate;
+        });
+        server.setCommandFactory((channel, command) -> new SimCommand(command));
+        server.start();
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String stats() {
+        return "logins=" + logins.get() + " commands=" + commands.get() + " bytesSent=" + bytesSent.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null)
+            server.stop(true);
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // -------------------- ANSWERS --------------------
+    private String answer(String command, InputStream stdin) throws IOException {
+        if (command.startsWith("sh -s"))
+            return answerScript(new String(stdin.readAllBytes(), StandardCharsets.UTF_8));
+        if (command.startsWith("uname"))
+            return UNAME + "\n";
+
+        Matcher m = COMMAND_V.matcher(command);
+        if (m.find())
+            return missing(m.group(1)) ? "" : "/usr/bin/" + m.group(1) + "\n";
+        m = PATH_TEST.matcher(command);
+        if (m.find())
+            return missing(m.group(1)) ? "missing\n" : "exists\n";
+        m = HELP.matcher(command);
+        if (m.find() && m.group(2).startsWith("-"))
+            return m.group(2).contains("bogus")
+                    ? m.group(1) + ": invalid option -- '" + m.group(2) + "'\n"
+                    : "Usage: " + m.group(1) + " [OPTION]... [FILE]...\n";
+        return filler(command);
+    }
+
+    // The validator's batch script: one reply line per probe, in the same tagged format
+    private String answerScript(String script) {
+        StringBuilder out = new StringBuilder();
+        String lastCommand = "";
+        for (String line : script.split("\n")) {
+            Matcher c = SCRIPT_COMMAND.matcher(line);
+            if (c.find())
+                lastCommand = c.group(1);
+            Matcher reply = SCRIPT_REPLY.matcher(line);
+            if (!reply.find())
+                continue;
+            String kind = reply.group(1);
+            String idx = kind.equals("F") ? "0" : reply.group(2);
+            Matcher m;
+            switch (kind) {
+                case "F":
+                    out.append("ROS\tF\t0\t").append(UNAME).append('\n');
+                    break;
+                case "C":
+                    out.append("ROS\tC\t").append(idx).append('\t')
+                            .append(missing(lastCommand) ? "" : "/usr/bin/" + lastCommand).append('\n');
+                    break;
+                case "O":
+                    m = SCRIPT_OPTION.matcher(line);
+                    if (m.find() && !missing(m.group(1)))
+                        out.append("ROS\tO\t").append(idx).append('\t').append(m.group(2).contains("bogus") ? 0 : 1)
+                                .append('\n');
+                    break;
+                case "P":
+                    m = SCRIPT_PATH.matcher(line);
+                    if (m.find())
+                        out.append("ROS\tP\t").append(idx).append('\t').append(missing(m.group(1)) ? 0 : 1).append('\n');
+                    break;
+                default:
+                    break;
+            }
+        }
+        return out.toString();
+    }
+
+    private String filler(String command) {
+        StringBuilder out = new StringBuilder(outputBytes + 80);
+        int i = 0;
+        while (out.length() < outputBytes)
+            out.append("-rw-r--r-- 1 root root ").append(4096 + i).append(" Jan  1 00:00 file").append(i++).append('\n');
+        out.setLength(outputBytes);
+        return out.toString();
+    }
+
+    private static boolean missing(String name) {
+        return name.contains("missing");
+    }
+
+    // -------------------- COMMAND --------------------
+    private class SimCommand implements Command {
+        private final String command;
+        private InputStream in;
+        private OutputStream out;
+        private ExitCallback exit;
+
+        SimCommand(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback callback) {
+            this.exit = callback;
+        }
+
+        @Override
+        public void start(ChannelSession channel, Environment env) {
+            commands.incrementAndGet();
+            long delay = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+            timer.schedule(() -> workers.execute(() -> run(channel)), delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void run(ChannelSession channel) {
+            try {
+                if (ThreadLocalRandom.current().nextDouble() < execFailureRate) {
+                    channel.getSession().close(true); // looks like a dropped connection
+                    return;
+                }
+                byte[] reply = answer(command, in).getBytes(StandardCharsets.UTF_8);
+                write(reply);
+                out.flush();
+                bytesSent.addAndGet(reply.length);
+                exit.onExit(0);
+            } catch (Exception e) {
+                exit.onExit(255, String.valueOf(e.getMessage()));
+            }
+        }
+
+        private void write(byte[] reply) throws IOException, InterruptedException {
+            if (bandwidthBps <= 0) {
+                out.write(reply);
+                return;
+            }
+            int chunk = 8192;
+            for (int off = 0; off < reply.length; off += chunk) {
+                int len = Math.min(chunk, reply.length - off);
+                out.write(reply, off, len);
+                out.flush();
+                Thread.sleep(len * 1000L / bandwidthBps);
+            }
+        }
+
+        @Override
+        public void destroy(ChannelSession channel) {
+        }
+    }
+
+    /** Runs a simulator until killed: java ... bench.FleetSimulator [port]. */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 2222;
+        FleetSimulator sim = new FleetSimulator(port).start();
+        System.out.println("Simulated fleet listening on 127.*.*.*:" + port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(sim.stats())));
+        Thread.currentThread().join();
+    }
+}
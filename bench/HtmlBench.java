@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Rendering the execution results page with many hosts and large command outputs. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class HtmlBench {
+
+    @Param({ "10", "200" })
+    public int hosts;
+
+    @Param({ "1024", "65536" })
+    public int outputBytes;
+
+    @Param({ "10" })
+    public int commands;
+
+    private Map<String, Map<String, String>> results;
+
+    @Setup
+    public void setup() {
+        StringBuilder line = new StringBuilder();
+        line.append("-rw-r--r-- 1 root root 4096 Jan  1 00:00 <app> & \"config\" 'x'\n");
+        StringBuilder output = new StringBuilder(outputBytes);
+        while (output.length() < outputBytes)
+            output.append(line);
+        output.setLength(outputBytes);
+
+        results = new LinkedHashMap<>();
+        for (int h = 0; h < hosts; h++) {
+            Map<String, String> cmdResults = new LinkedHashMap<>();
+            for (int c = 0; c < commands; c++)
+                cmdResults.put("check " + c + " : ls -l /var/log/app" + c, output.toString());
+            results.put("10.0." + (h >> 8) + "." + (h & 255), cmdResults);
+        }
+    }
+
+    @Benchmark
+    public String buildExecutionPage() throws Throwable {
+        return Ros.buildExecutionPage(results);
+    }
+
+    /** What /execute now does: encode into the response stream without building the page. */
+    @Benchmark
+    public void writeExecutionPage() throws Throwable {
+        Writer out = Ros.pageWriter(OutputStream.nullOutputStream());
+        Ros.writeExecutionPage(out, results);
+        out.flush();
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The upload path on large bodies: parseFormMulti skips the file part while
+ * collecting fields, saveUploadedFile streams it to resource/ (the file is
+ * removed after every call).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class MultipartBench {
+
+    @Param({ "1048576", "33554432" })
+    public int fileBytes;
+
+    @Param({ "200" })
+    public int fields;
+
+    private byte[] body;
+    private File saved;
+
+    @Setup
+    public void setup() {
+        body = FakeExchange.multipartBody(fileBytes, fields);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteSaved() throws Exception {
+        if (saved != null)
+            Files.deleteIfExists(saved.toPath());
+        saved = null;
+    }
+
+    @Benchmark
+    public Object parseFormMulti() throws Throwable {
+        return Ros.parseFormMulti(new FakeExchange(FakeExchange.multipartContentType(), body));
+    }
+
+    @Benchmark
+    public Object saveUploadedFile() throws Throwable {
+        saved = Ros.saveUploadedFile(new FakeExchange(FakeExchange.multipartContentType(), body), "bench.xlsx");
+        return saved;
+    }
+}
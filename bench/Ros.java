@@ -0,0 +1,140 @@
+package bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import models.Host;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The application classes live in the default package, which code in a named
+ * package cannot import, and JMH refuses benchmarks in the default package.
+ * This bridge reaches them through static final method handles, which the JIT
+ * inlines like direct calls.
+ */
+final class Ros {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle PARSE_INVENTORY = staticMethod("ExcelParser", "parseInventory", String.class);
+    private static final MethodHandle PARSE_FORM_MULTI = staticMethod("Helper", "parseFormMulti", HttpExchange.class);
+    private static final MethodHandle SAVE_UPLOADED_FILE = staticMethod("Helper$FileUploadHelper", "saveUploadedFile",
+            HttpExchange.class, String.class);
+    private static final MethodHandle BUILD_EXECUTION_PAGE = staticMethod("Helper$HtmlBuilder", "buildExecutionPage",
+            Map.class);
+    private static final MethodHandle WRITE_EXECUTION_PAGE = staticMethod("Helper$HtmlBuilder", "writeExecutionPage",
+            Writer.class, Map.class);
+    private static final MethodHandle NEW_PAGE_WRITER = constructor("Helper$HtmlBuilder$PageWriter", OutputStream.class);
+    private static final MethodHandle CLEAN_OUTPUT = method("SSHManager", "cleanOutput", Host.class, String.class);
+    private static final MethodHandle NEW_CACHE_MANAGER = constructor("CacheManager", Path.class);
+    private static final MethodHandle GET_OR_LOAD_COMMAND = method("CacheManager", "getOrLoadCommand",
+            String.class, type("CacheManager$Loader"));
+    private static final MethodHandle SUPPLIER_GET;
+
+    static {
+        try {
+            SUPPLIER_GET = LOOKUP.findVirtual(Supplier.class, "get", MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Ros() {
+    }
+
+    static Object parseInventory(String path) throws Throwable {
+        return PARSE_INVENTORY.invoke(path);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, List<String>> parseFormMulti(HttpExchange exchange) throws Throwable {
+        return (Map<String, List<String>>) PARSE_FORM_MULTI.invoke(exchange);
+    }
+
+    static File saveUploadedFile(HttpExchange exchange, String filename) throws Throwable {
+        return (File) SAVE_UPLOADED_FILE.invoke(exchange, filename);
+    }
+
+    static String buildExecutionPage(Map<String, Map<String, String>> results) throws Throwable {
+        return (String) BUILD_EXECUTION_PAGE.invoke(results);
+    }
+
+    static Writer pageWriter(OutputStream out) throws Throwable {
+        return (Writer) NEW_PAGE_WRITER.invoke(out);
+    }
+
+    static void writeExecutionPage(Writer out, Map<String, Map<String, String>> results) throws Throwable {
+        WRITE_EXECUTION_PAGE.invoke(out, results);
+    }
+
+    /** Starts the HTTP server on :8080. Looked up late: loading Robot reads the ros.* properties. */
+    static void startRobot() throws Throwable {
+        staticMethod("Robot", "main", String[].class).invoke((Object) new String[0]);
+    }
+
+    /** An SSHManager for calling its text helpers; never connects anywhere. */
+    static Object newSshManager() throws Throwable {
+        Object sessions = constructor("HostSessionManager").invoke();
+        Object cache = NEW_CACHE_MANAGER.invoke((Path) null);
+        return constructor("SSHManager", type("HostSessionManager"), type("CacheManager")).invoke(sessions, cache);
+    }
+
+    static String cleanOutput(Object sshManager, Host host, String raw) throws Throwable {
+        return (String) CLEAN_OUTPUT.invoke(sshManager, host, raw);
+    }
+
+    /** An in-memory CacheManager (no persistence log). */
+    static Object newCacheManager() throws Throwable {
+        return NEW_CACHE_MANAGER.invoke((Path) null);
+    }
+
+    /** Wraps a supplier as a CacheManager.Loader once, outside the measured loop. */
+    static Object loader(Supplier<String> supplier) {
+        return MethodHandleProxies.asInterfaceInstance(type("CacheManager$Loader"), SUPPLIER_GET.bindTo(supplier));
+    }
+
+    static String getOrLoadCommand(Object cacheManager, String key, Object loader) throws Throwable {
+        return (String) GET_OR_LOAD_COMMAND.invoke(cacheManager, key, loader);
+    }
+
+    // -------------------- LOOKUP --------------------
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(String owner, String name, Class<?>... params) {
+        try {
+            Method m = type(owner).getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            return LOOKUP.unreflect(m);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(String owner, String name, Class<?>... params) {
+        return staticMethod(owner, name, params); // unreflect handles instance methods too
+    }
+
+    private static MethodHandle constructor(String owner, Class<?>... params) {
+        try {
+            return LOOKUP.unreflectConstructor(type(owner).getDeclaredConstructor(params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
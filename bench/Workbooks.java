@@ -0,0 +1,110 @@
+package bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes inventory workbooks in the layout ExcelParser expects, without POI:
+ * a "hosts_credentials" sheet (OS type in F2, hosts from row 5) and a
+ * "commands" sheet. Repeated values go through the shared strings table
+ * like they do in files saved by Excel.
+ */
+final class Workbooks {
+
+    private static final String NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+
+    private Workbooks() {
+    }
+
+    static Path write(int hosts, int commands) throws IOException {
+        List<String> addresses = new ArrayList<>(hosts);
+        for (int i = 0; i < hosts; i++)
+            addresses.add("10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255));
+        return write(addresses, commands);
+    }
+
+    static Path write(List<String> addresses, int commands) throws IOException {
+        Path file = Files.createTempFile("ros-bench-", ".xlsx");
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            entry(zip, "[Content_Types].xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                    + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                    + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                    + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>"
+                    + "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>"
+                    + "<Override PartName=\"/xl/worksheets/sheet2.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>"
+                    + "<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml\"/>"
+                    + "</Types>");
+            entry(zip, "_rels/.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+                    + "</Relationships>");
+            entry(zip, "xl/workbook.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<workbook xmlns=\"" + NS + "\" xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">"
+                    + "<sheets><sheet name=\"hosts_credentials\" sheetId=\"1\" r:id=\"rId1\"/>"
+                    + "<sheet name=\"commands\" sheetId=\"2\" r:id=\"rId2\"/></sheets></workbook>");
+            entry(zip, "xl/_rels/workbook.xml.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                    + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+                    + "<Relationship Id=\"rId2\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet2.xml\"/>"
+                    + "<Relationship Id=\"rId3\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/sharedStrings\" Target=\"sharedStrings.xml\"/>"
+                    + "</Relationships>");
+
+            // shared strings: 0 = os type, 1 = user, 2 = password, 3.. = commands
+            zip.putNextEntry(new ZipEntry("xl/sharedStrings.xml"));
+            Writer w = writer(zip);
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sst xmlns=\"" + NS + "\">");
+            w.write("<si><t>linux</t></si><si><t>root</t></si><si><t>secret</t></si>");
+            for (int i = 0; i < commands; i++)
+                w.write("<si><t>ls -l /var/log/app" + i + " /tmp</t></si>");
+            w.write("</sst>");
+            w.flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            w = writer(zip);
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><worksheet xmlns=\"" + NS + "\"><sheetData>");
+            w.write("<row r=\"2\"><c r=\"F2\" t=\"s\"><v>0</v></c></row>");
+            for (int i = 0; i < addresses.size(); i++) {
+                int r = i + 5;
+                w.write("<row r=\"" + r + "\"><c r=\"A" + r + "\"><v>" + (i + 1) + "</v></c>"
+                        + "<c r=\"B" + r + "\" t=\"inlineStr\"><is><t>" + addresses.get(i) + "</t></is></c>"
+                        + "<c r=\"H" + r + "\" t=\"s\"><v>1</v></c><c r=\"M" + r + "\" t=\"s\"><v>2</v></c></row>");
+            }
+            w.write("</sheetData></worksheet>");
+            w.flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("xl/worksheets/sheet2.xml"));
+            w = writer(zip);
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><worksheet xmlns=\"" + NS + "\"><sheetData>");
+            w.write("<row r=\"1\"><c r=\"A1\" t=\"inlineStr\"><is><t>Description</t></is></c></row>");
+            for (int i = 0; i < commands; i++) {
+                int r = i + 2;
+                w.write("<row r=\"" + r + "\"><c r=\"A" + r + "\" t=\"inlineStr\"><is><t>check " + i + "</t></is></c>"
+                        + "<c r=\"B" + r + "\" t=\"s\"><v>" + (i + 3) + "</v></c></row>");
+            }
+            w.write("</sheetData></worksheet>");
+            w.flush();
+            zip.closeEntry();
+        }
+        return file;
+    }
+
+    private static void entry(ZipOutputStream zip, String name, String xml) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(xml.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    // Not closed: closing would close the zip stream
+    private static Writer writer(OutputStream out) {
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    }
+}
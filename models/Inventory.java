@@ -0,0 +1,29 @@
+package models;
+
+import java.util.List;
+
+public class Inventory {
+    List<Host> hosts;
+    List<Command> commands;
+
+    public Inventory(List<Host> hosts, List<Command> commands) {
+        this.hosts = hosts;
+        this.commands = commands;
+    }
+
+    public List<Host> getHosts() {
+        return hosts;
+    }
+
+    public void setHosts(List<Host> hosts) {
+        this.hosts = hosts;
+    }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    public void setCommands(List<Command> commands) {
+        this.commands = commands;
+    }
+}
@@ -0,0 +1,147 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheManagerTest {
+
+    private static final String SCOPE = "root@10.0.0.1#linux";
+
+    private final CacheManager cache = new CacheManager(null);
+    private final CacheManager.Probes<String> commands = cache.commands();
+
+    @Test
+    void concurrentClaimsShareOneProbe() throws Exception {
+        String key = CacheManager.key(SCOPE, "ls");
+        CacheManager.Probes<String>.Claim first = commands.claim(key);
+        CacheManager.Probes<String>.Claim second = commands.claim(key);
+
+        assertTrue(first.isProbe());
+        assertFalse(second.isProbe());
+        CompletableFuture<String> waiting = second.answer();
+        assertFalse(waiting.isDone());
+
+        first.put("/bin/ls");
+        assertEquals("/bin/ls", waiting.get(1, TimeUnit.SECONDS));
+        assertFalse(commands.claim(key).isProbe());
+    }
+
+    @Test
+    void claimDroppedByFingerprintChangeStillCompletesItsWaiters() throws Exception {
+        String key = CacheManager.key(SCOPE, "ls");
+        cache.updateFingerprint(SCOPE, "Linux 5.15 x86_64");
+        CacheManager.Probes<String>.Claim prober = commands.claim(key);
+        CompletableFuture<String> waiting = commands.claim(key).answer();
+
+        cache.updateFingerprint(SCOPE, "Linux 6.1 x86_64"); // drops the in-flight entry
+        prober.put("/bin/ls");
+
+        assertEquals("/bin/ls", waiting.get(1, TimeUnit.SECONDS));
+        assertEquals("/bin/ls", prober.answer().get(1, TimeUnit.SECONDS));
+        assertTrue(commands.claim(key).isProbe(), "an answer for a dropped key is not cached again");
+    }
+
+    @Test
+    void claimClearedWhileProbingStillFailsItsWaiters() {
+        String key = CacheManager.key(SCOPE, "ls");
+        CacheManager.Probes<String>.Claim prober = commands.claim(key);
+        CompletableFuture<String> waiting = commands.claim(key).answer();
+
+        cache.clearAll();
+        IllegalStateException error = new IllegalStateException("no probe result");
+        prober.fail(error);
+
+        CompletionException thrown = assertThrows(CompletionException.class, waiting::join);
+        assertSame(error, thrown.getCause());
+    }
+
+    @Test
+    void failedProbeIsServedAsTheErrorUntilItExpires() {
+        String key = CacheManager.key(SCOPE, "ls");
+        commands.claim(key).fail(new IllegalStateException("connection reset"));
+
+        CacheManager.Probes<String>.Claim next = commands.claim(key);
+        assertFalse(next.isProbe());
+        assertThrows(CompletionException.class, next.answer()::join);
+    }
+
+    @Test
+    void probersRacingInvalidationsNeverHang() throws Exception {
+        cache.updateFingerprint(SCOPE, "fp-0");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<CompletableFuture<String>> answers = new ArrayList<>();
+            for (int i = 0; i < 2_000; i++) {
+                String key = CacheManager.key(SCOPE, "cmd" + (i % 50));
+                int n = i;
+                answers.add(CompletableFuture.supplyAsync(() -> {
+                    CacheManager.Probes<String>.Claim claim = commands.claim(key);
+                    if (n % 100 == 0)
+                        cache.updateFingerprint(SCOPE, "fp-" + n);
+                    if (claim.isProbe())
+                        claim.put("/usr/bin/" + key);
+                    return claim.answer();
+                }, pool).thenCompose(answer -> answer));
+            }
+            CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void getOrLoadProbesOnTheCallersThread() throws Exception {
+        // The loader may use a session the caller releases as soon as getOrLoad returns
+        String key = CacheManager.key(SCOPE, "ls");
+        Thread caller = Thread.currentThread();
+        assertEquals("/bin/ls", cache.getOrLoadCommand(key, () -> {
+            assertSame(caller, Thread.currentThread());
+            return "/bin/ls";
+        }));
+        assertEquals("/bin/ls", cache.getOrLoadCommand(key, () -> fail("served from the cache")));
+    }
+
+    @Test
+    void getOrLoadThrowsWhatTheProbeFailedWith() {
+        String key = CacheManager.key(SCOPE, "ls");
+        IllegalStateException error = new IllegalStateException("connection reset");
+        assertSame(error, assertThrows(IllegalStateException.class,
+                () -> cache.getOrLoadCommand(key, () -> { throw error; })));
+        assertSame(error, assertThrows(IllegalStateException.class,
+                () -> cache.getOrLoadCommand(key, () -> "/bin/ls")), "kept for the error TTL");
+    }
+
+    @Test
+    void failedFingerprintCheckIsRetried() {
+        assertTrue(cache.claimFingerprintCheck(SCOPE));
+        assertFalse(cache.claimFingerprintCheck(SCOPE), "one check per host at a time");
+
+        cache.finishFingerprintCheck(SCOPE); // failed: nothing recorded
+        assertTrue(cache.claimFingerprintCheck(SCOPE));
+
+        cache.updateFingerprint(SCOPE, "Linux 6.1 x86_64");
+        cache.finishFingerprintCheck(SCOPE);
+        assertFalse(cache.claimFingerprintCheck(SCOPE));
+    }
+
+    @Test
+    void fingerprintChangeDropsOnlyThatHost() {
+        String other = "root@10.0.0.2#linux";
+        cache.updateFingerprint(SCOPE, "Linux 5.15 x86_64");
+        cache.updateFingerprint(other, "Linux 5.15 x86_64");
+        cache.putCommand(CacheManager.key(SCOPE, "ls"), "/bin/ls");
+        cache.putCommand(CacheManager.key(other, "ls"), "/bin/ls");
+
+        cache.updateFingerprint(SCOPE, "Linux 6.1 x86_64");
+
+        assertTrue(commands.claim(CacheManager.key(SCOPE, "ls")).isProbe());
+        assertFalse(commands.claim(CacheManager.key(other, "ls")).isProbe());
+    }
+}
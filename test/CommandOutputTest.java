@@ -0,0 +1,124 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs with ros.output.memoryBytes=64 (see pom.xml): 32 bytes of head and 32 of tail once spilled
+class CommandOutputTest {
+
+    private static final int MEMORY = 64;
+    private static final int HALF = MEMORY / 2;
+
+    private final List<CommandOutput> outputs = new ArrayList<>();
+
+    @AfterEach
+    void deleteSpillFiles() {
+        outputs.forEach(CommandOutput::discard);
+    }
+
+    @Test
+    void outputUpToTheLimitStaysInMemory() throws IOException {
+        CommandOutput output = output();
+        String text = text(MEMORY);
+        output.getStdout().write(bytes(text));
+
+        assertFalse(output.getStdout().isSpilled());
+        assertEquals(text, output.getStdout().preview());
+        assertEquals(text, read(output.getStdout()));
+    }
+
+    @Test
+    void oneBytePastTheLimitSpillsHeadAndTail() throws IOException {
+        CommandOutput output = output();
+        String text = text(MEMORY + 1);
+        output.getStdout().write(bytes(text));
+        output.getStdout().close(); // flushes the spill file
+
+        assertTrue(output.getStdout().isSpilled());
+        assertPreview(text, output.getStdout().preview());
+        assertEquals(text, read(output.getStdout()));
+    }
+
+    @Test
+    void tailRingBufferWrapsAcrossUnevenWrites() throws IOException {
+        CommandOutput output = output();
+        String text = text(1_000);
+        byte[] data = bytes(text);
+        for (int off = 0, len = 1; off < data.length; off += len, len = len % 13 + 1)
+            output.getStdout().write(data, off, Math.min(len, data.length - off));
+        output.getStdout().close();
+
+        assertEquals(text.length(), output.getStdout().size());
+        assertPreview(text, output.getStdout().preview());
+        assertEquals(text, read(output.getStdout()));
+    }
+
+    @Test
+    void writeLargerThanTheTailKeepsItsLastBytes() throws IOException {
+        CommandOutput output = output();
+        String text = text(10);
+        String large = text(HALF * 5);
+        output.getStdout().write(bytes(text));
+        output.getStdout().write(bytes(large));
+
+        assertPreview(text + large, output.getStdout().preview());
+    }
+
+    @Test
+    void doneWaitsForBothStreams() throws IOException {
+        CommandOutput output = output();
+        output.getStdout().write(bytes("out\n"));
+        output.getStdout().close(); // remote EOF
+
+        assertFalse(output.done.isDone());
+        output.getStderr().close(); // channel closed
+        assertTrue(output.done.isDone());
+    }
+
+    @Test
+    void stderrFollowsStdoutUnderASeparator() throws IOException {
+        CommandOutput output = output();
+        output.getStdout().write(bytes("out\n"));
+        output.getStderr().write(bytes("err\n"));
+
+        assertEquals("out\n--- stderr ---\nerr", output.toString());
+    }
+
+    private CommandOutput output() {
+        CommandOutput output = new CommandOutput();
+        outputs.add(output);
+        return output;
+    }
+
+    // Printable ASCII with a period of 90, so misplaced bytes show up
+    private static String text(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            sb.append((char) ('!' + (i * 7 + length) % 90));
+        return sb.toString();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String read(CommandOutput.Capture capture) throws IOException {
+        try (InputStream in = capture.open()) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static void assertPreview(String text, String preview) {
+        String head = text.substring(0, HALF);
+        String tail = text.substring(text.length() - HALF);
+        int omitted = text.length() - 2 * HALF;
+        assertTrue(preview.startsWith(head + "\n...\n[" + omitted + " bytes omitted"), preview);
+        assertTrue(preview.endsWith("]\n...\n" + tail), preview);
+    }
+}
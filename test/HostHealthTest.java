@@ -0,0 +1,149 @@
+import models.Host;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs with short timings (see pom.xml): circuit open 200 ms doubling up to 800 ms,
+// connect timeout 100 ms falling to 20 ms, 1 ms retry backoff; 2 retries and a threshold of 3 by default.
+// Connect latencies and circuit waits follow a hand-advanced clock.
+class HostHealthTest {
+
+    private static final Predicate<Exception> NOT_AUTH = e -> !String.valueOf(e.getMessage()).contains("auth");
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final HostHealth health = new HostHealth(new ConnectLimiter(), nanos::get);
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Test
+    void transientFailuresAreRetriedThenOpenTheCircuit() {
+        Host host = host("10.1.0.1");
+        assertThrows(IOException.class, () -> connect(host, this::refused));
+        assertEquals(3, attempts.get(), "first attempt and two retries");
+
+        assertThrows(HostHealth.CircuitOpenException.class, () -> connect(host, this::refused));
+        assertThrows(HostHealth.CircuitOpenException.class, () -> health.checkAvailable(host));
+        assertEquals(3, attempts.get(), "an open circuit fails without connecting");
+        assertTrue(health.getOpenCircuits().containsKey("10.1.0.1"));
+    }
+
+    @Test
+    void failuresFromALiveHostDoNotCount() throws Exception {
+        Host host = host("10.1.0.2");
+        for (int i = 0; i < 5; i++)
+            assertThrows(IOException.class, () -> connect(host, timeoutMs -> {
+                attempts.incrementAndGet();
+                throw new IOException("auth fail");
+            }));
+        assertEquals(5, attempts.get(), "not retried, and the circuit stays closed");
+        health.checkAvailable(host);
+    }
+
+    @Test
+    void successResetsTheFailureCount() throws Exception {
+        Host host = host("10.1.0.3");
+        AtomicInteger calls = new AtomicInteger();
+        // Two failures then a success, twice: never three in a row
+        for (int i = 0; i < 2; i++)
+            assertEquals("up", connect(host, timeoutMs -> {
+                if (calls.incrementAndGet() % 3 != 0)
+                    throw new IOException("refused");
+                return "up";
+            }));
+        health.checkAvailable(host);
+    }
+
+    @Test
+    void hostThatNeverAnsweredOpensOnItsFirstTimeout() {
+        Host host = host("10.1.0.4");
+        assertThrows(IOException.class, () -> connect(host, timeoutMs -> {
+            attempts.incrementAndGet();
+            advance(timeoutMs);
+            throw new IOException("timeout: socket is not established");
+        }));
+        assertEquals(1, attempts.get(), "a dead host is not retried");
+        assertThrows(HostHealth.CircuitOpenException.class, () -> health.checkAvailable(host));
+    }
+
+    @Test
+    void openCircuitLetsOneTrialThroughAfterTheWait() throws Exception {
+        Host host = host("10.1.0.5");
+        assertThrows(IOException.class, () -> connect(host, this::refused));
+        advance(200);
+
+        CountDownLatch inTrial = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> trial = CompletableFuture.supplyAsync(() -> {
+            try {
+                return connect(host, timeoutMs -> {
+                    inTrial.countDown();
+                    release.await();
+                    return "up";
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(inTrial.await(1, TimeUnit.SECONDS));
+        assertThrows(HostHealth.CircuitOpenException.class, () -> connect(host, this::refused),
+                "only one caller tests an open circuit");
+
+        release.countDown();
+        assertEquals("up", trial.get(1, TimeUnit.SECONDS));
+        assertEquals("up", connect(host, timeoutMs -> "up"), "a successful trial closes the circuit");
+    }
+
+    @Test
+    void failedTrialDoublesTheWait() throws Exception {
+        Host host = host("10.1.0.6");
+        assertThrows(IOException.class, () -> connect(host, this::refused));
+        advance(199);
+        assertThrows(HostHealth.CircuitOpenException.class, () -> health.checkAvailable(host));
+        advance(1);
+        assertThrows(IOException.class, () -> connect(host, this::refused)); // trial, fails at once
+
+        advance(399);
+        assertThrows(HostHealth.CircuitOpenException.class, () -> health.checkAvailable(host), "open for 400 ms now");
+        advance(1);
+        health.checkAvailable(host);
+    }
+
+    @Test
+    void connectTimeoutFollowsObservedLatency() throws Exception {
+        Host host = host("10.1.0.7");
+        assertEquals(100, health.connectTimeoutMs(host), "configured timeout until there are samples");
+        connect(host, timeoutMs -> {
+            advance(10);
+            return "up";
+        });
+        assertEquals(40, health.connectTimeoutMs(host), "p99 x factor");
+
+        Host fast = host("10.1.0.8");
+        connect(fast, timeoutMs -> "up");
+        assertEquals(20, health.connectTimeoutMs(fast), "floored at the minimum");
+    }
+
+    private void advance(long ms) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    private String connect(Host host, HostHealth.Attempt<String> attempt) throws Exception {
+        return health.connect(host, "ssh", NOT_AUTH, attempt);
+    }
+
+    private String refused(int timeoutMs) throws IOException {
+        attempts.incrementAndGet();
+        throw new IOException("Connection refused");
+    }
+
+    private static Host host(String address) {
+        return new Host(address, "root", "", "linux");
+    }
+}
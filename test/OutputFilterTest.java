@@ -0,0 +1,74 @@
+import models.Host;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Default linux patterns: banner "Last login:", noise "register this system"
+class OutputFilterTest {
+
+    private static final OutputFilter LINUX = OutputFilter.forHost(new Host("10.0.0.1", "root", "", "Linux "));
+
+    @Test
+    void cleanDropsBannerNoiseAndBlankLines() {
+        String raw = "  Last login: Mon Jan  1 00:00:00 2024 from 10.0.0.9\n"
+                + "\n"
+                + "/usr/bin/ls  \r\n"
+                + "This system is not registered. Please REGISTER THIS SYSTEM first.\n"
+                + "  total 0";
+
+        assertEquals("/usr/bin/ls\ntotal 0", LINUX.clean(raw));
+    }
+
+    @Test
+    void bannerOnlyMatchesAtTheStartOfALine() {
+        assertEquals("see Last login: above", LINUX.clean("see Last login: above\n"));
+    }
+
+    @Test
+    void wrapKeepsOtherLinesByteForByte() throws IOException {
+        String kept = "  indented\n\nnot a banner: Last login:\nété ✓\n";
+        assertEquals(kept, filter("Last login: yesterday\n" + kept + "please register this system\n", 64));
+    }
+
+    @Test
+    void wrapMatchesLinesSplitAcrossWrites() throws IOException {
+        String raw = "Last login: yesterday\nfile1\nregister this system\nfile2\n";
+        assertEquals("file1\nfile2\n", filter(raw, 1));
+        assertEquals("file1\nfile2\n", filter(raw, 5));
+    }
+
+    @Test
+    void wrapFiltersTheLastLineOnClose() throws IOException {
+        assertEquals("file1\n", filter("file1\nLast login: yesterday", 64));
+        assertEquals("file1\nfile2", filter("file1\nfile2", 64));
+    }
+
+    @Test
+    void overLongLinesPassThroughUnfiltered() throws IOException {
+        String longLine = "Last login: " + "x".repeat(10 * 1024) + "\n";
+        assertEquals(longLine + "file1\n", filter(longLine + "file1\n", 1000));
+    }
+
+    @Test
+    void typesWithoutPatternsAreNotWrapped() {
+        OutputFilter none = OutputFilter.forHost(new Host("10.0.0.1", "root", "", "aix"));
+        OutputStream out = new ByteArrayOutputStream();
+        assertSame(out, none.wrap(out));
+        assertEquals("Last login: kept", none.clean("Last login: kept\n"));
+    }
+
+    private static String filter(String raw, int chunk) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        byte[] data = raw.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = LINUX.wrap(sink)) {
+            for (int off = 0; off < data.length; off += chunk)
+                out.write(data, off, Math.min(chunk, data.length - off));
+        }
+        return sink.toString(StandardCharsets.UTF_8);
+    }
+}